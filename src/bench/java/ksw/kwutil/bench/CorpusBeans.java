@@ -0,0 +1,239 @@
+package ksw.kwutil.bench;
+
+import java.util.List;
+import java.util.Map;
+
+import ksw.kwutil.JSONReader;
+import ksw.kwutil.JSONReader.JSONParseException;
+import ksw.kwutil.JSONReader.JSONReadable;
+import ksw.kwutil.JSONReader.JSONReadableBySetters;
+import ksw.kwutil.JSONWriter.JSONWriteableByGet;
+
+// classes the corpus payloads are read into
+// the plain names are built with setters (parseUsingSetters) - they need a setter for every key in the JSON
+// the R versions are built through their constructors (parseInputAsObject), and only read what they want
+public class CorpusBeans
+{
+    public static class NamedItem implements JSONReadableBySetters, JSONWriteableByGet
+    {
+        private static final String[] FieldNames = {"id", "name"};
+        
+        private String _id;
+        private String _name;
+        
+        public void setId(String value) {_id = value;}
+        public void setName(String value) {_name = value;}
+        public String getId() {return _id;}
+        public String getName() {return _name;}
+        
+        public void postJSONRead() {}
+        
+        public Object getWriteable() {return this;}
+        public String[] getFieldNames() {return FieldNames;}
+    }
+    
+    public static class Metadata implements JSONReadableBySetters
+    {
+        private Integer _offset;
+        private Integer _limit;
+        private Integer _total;
+        private NamedItem _category;
+        
+        public void setOffset(Integer value) {_offset = value;}
+        public void setLimit(Integer value) {_limit = value;}
+        public void setTotal(Integer value) {_total = value;}
+        public void setCategory(NamedItem value) {_category = value;}
+        
+        public void postJSONRead() {}
+    }
+    
+    public static class Image implements JSONReadableBySetters
+    {
+        private String _id;
+        private Map _sizes;  // keyed by size names like "Medium", which setters can't match
+        
+        public void setId(String value) {_id = value;}
+        public void setSizes(Map value) {_sizes = value;}
+        
+        public void postJSONRead() {}
+    }
+    
+    public static class Product implements JSONReadableBySetters, JSONWriteableByGet
+    {
+        // no price - the writer doesn't do Doubles through getters
+        private static final String[] FieldNames = {"id", "name", "currency", "priceLabel", "inStock", "retailer", "brand", "description", "url", "categories"};
+        
+        private Integer _id;
+        private String _name;
+        private String _brandedName;
+        private String _unbrandedName;
+        private String _currency;
+        private Double _price;
+        private String _priceLabel;
+        private Boolean _inStock;
+        private NamedItem _retailer;
+        private String _locale;
+        private String _description;
+        private NamedItem _brand;
+        private String _url;
+        private String _clickUrl;
+        private Image _image;
+        private List<NamedItem> _colors;
+        private List<NamedItem> _categories;
+        private String _seeMoreUrl;
+        private String _extractDate;
+        
+        public void setId(Integer value) {_id = value;}
+        public void setName(String value) {_name = value;}
+        public void setBrandedName(String value) {_brandedName = value;}
+        public void setUnbrandedName(String value) {_unbrandedName = value;}
+        public void setCurrency(String value) {_currency = value;}
+        public void setPrice(Double value) {_price = value;}
+        public void setPriceLabel(String value) {_priceLabel = value;}
+        public void setInStock(Boolean value) {_inStock = value;}
+        public void setRetailer(NamedItem value) {_retailer = value;}
+        public void setLocale(String value) {_locale = value;}
+        public void setDescription(String value) {_description = value;}
+        public void setBrand(NamedItem value) {_brand = value;}
+        public void setUrl(String value) {_url = value;}
+        public void setClickUrl(String value) {_clickUrl = value;}
+        public void setImage(Image value) {_image = value;}
+        public void setColors(List<NamedItem> value) {_colors = value;}
+        public void setCategories(List<NamedItem> value) {_categories = value;}
+        public void setSeeMoreUrl(String value) {_seeMoreUrl = value;}
+        public void setExtractDate(String value) {_extractDate = value;}
+        
+        public Integer getId() {return _id;}
+        public String getName() {return _name;}
+        public String getCurrency() {return _currency;}
+        public Double getPrice() {return _price;}
+        public String getPriceLabel() {return _priceLabel;}
+        public Boolean getInStock() {return _inStock;}
+        public NamedItem getRetailer() {return _retailer;}
+        public NamedItem getBrand() {return _brand;}
+        public String getDescription() {return _description;}
+        public String getUrl() {return _url;}
+        public List<NamedItem> getCategories() {return _categories;}
+        
+        public void postJSONRead() {}
+        
+        public Object getWriteable() {return this;}
+        public String[] getFieldNames() {return FieldNames;}
+    }
+    
+    public static class ProductPage implements JSONReadableBySetters
+    {
+        private Metadata _metadata;
+        private List<Product> _products;
+        
+        public void setMetadata(Metadata value) {_metadata = value;}
+        public void setProducts(List<Product> value) {_products = value;}
+        public List<Product> getProducts() {return _products;}
+        
+        public void postJSONRead() {}
+    }
+    
+    public static class Retailer implements JSONReadableBySetters
+    {
+        private String _id;
+        private String _name;
+        private Integer _score;
+        private Boolean _deeplinkSupport;
+        private String _hostDomain;
+        
+        public void setId(String value) {_id = value;}
+        public void setName(String value) {_name = value;}
+        public void setScore(Integer value) {_score = value;}
+        public void setDeeplinkSupport(Boolean value) {_deeplinkSupport = value;}
+        public void setHostDomain(String value) {_hostDomain = value;}
+        
+        public void postJSONRead() {}
+    }
+    
+    public static class RetailerList implements JSONReadableBySetters
+    {
+        private List<Retailer> _retailers;
+        
+        public void setRetailers(List<Retailer> value) {_retailers = value;}
+        
+        public void postJSONRead() {}
+    }
+    
+    public static class NamedItemR implements JSONReadable
+    {
+        private String _id;
+        private String _name;
+        
+        public NamedItemR(JSONReader reader) throws JSONParseException
+        {
+            _id = (String)reader.getValue("id");
+            _name = (String)reader.getValue("name");
+        }
+    }
+    
+    public static class ProductR implements JSONReadable
+    {
+        private Integer _id;
+        private String _name;
+        private Double _price;
+        private String _priceLabel;
+        private Boolean _inStock;
+        private NamedItemR _retailer;
+        private NamedItemR _brand;
+        private String _description;
+        private String _url;
+        private Map _image;
+        private List<NamedItemR> _categories;
+        
+        public ProductR(JSONReader reader) throws JSONParseException
+        {
+            _id = (Integer)reader.getValue("id");
+            _name = (String)reader.getValue("name");
+            _price = (Double)reader.getValue("price");
+            _priceLabel = (String)reader.getValue("priceLabel");
+            _inStock = (Boolean)reader.getValue("inStock");
+            _retailer = (NamedItemR)reader.getValue("retailer");
+            _brand = (NamedItemR)reader.getValue("brand");
+            _description = (String)reader.getValue("description");
+            _url = (String)reader.getValue("url");
+            _image = (Map)reader.getValue("image");
+            _categories = (List<NamedItemR>)reader.getValue("categories");
+        }
+    }
+    
+    public static class ProductPageR implements JSONReadable
+    {
+        private List<ProductR> _products;
+        
+        public ProductPageR(JSONReader reader) throws JSONParseException
+        {
+            _products = (List<ProductR>)reader.getValue("products");
+        }
+    }
+    
+    public static class RetailerR implements JSONReadable
+    {
+        private String _id;
+        private String _name;
+        private Integer _score;
+        private Boolean _deeplinkSupport;
+        
+        public RetailerR(JSONReader reader) throws JSONParseException
+        {
+            _id = (String)reader.getValue("id");
+            _name = (String)reader.getValue("name");
+            _score = (Integer)reader.getValue("score");
+            _deeplinkSupport = (Boolean)reader.getValue("deeplinkSupport");
+        }
+    }
+    
+    public static class RetailerListR implements JSONReadable
+    {
+        private List<RetailerR> _retailers;
+        
+        public RetailerListR(JSONReader reader) throws JSONParseException
+        {
+            _retailers = (List<RetailerR>)reader.getValue("retailers");
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package ksw.kwutil.bench;
+
+import java.util.Random;
+
+// generated JSON in the shape of ShopStyle API responses, for the benchmarks
+// everything comes from a fixed seed, so the corpus is the same from run to run
+public class JSONCorpus
+{
+    public enum Payload
+    {
+        // a product search that found one thing
+        small(CorpusBeans.ProductPage.class, CorpusBeans.ProductPageR.class),
+        // a normal page of product search results
+        page20(CorpusBeans.ProductPage.class, CorpusBeans.ProductPageR.class),
+        // the full retailer list
+        retailers5000(CorpusBeans.RetailerList.class, CorpusBeans.RetailerListR.class);
+        
+        private final Class _setterClass;
+        private final Class _readableClass;
+        
+        private Payload(Class setterClass, Class readableClass)
+        {
+            _setterClass = setterClass;
+            _readableClass = readableClass;
+        }
+        
+        // JSONReadableBySetters class for parseUsingSetters
+        public Class getSetterClass()
+        {
+            return _setterClass;
+        }
+        
+        // JSONReadable class for parseInputAsObject
+        public Class getReadableClass()
+        {
+            return _readableClass;
+        }
+        
+        public String getText()
+        {
+            switch (this) {
+            case small:
+                return productPage(1);
+            case page20:
+                return productPage(20);
+            default:
+                return retailerList(5000);
+            }
+        }
+    }
+    
+    private static final String[] Brands = {"Diane von Furstenberg", "Halston Heritage", "Vince Camuto", "Eliza J", "Calvin Klein", "Tory Burch", "Ted Baker", "Adrianna Papell"};
+    private static final String[] Retailers = {"Nordstrom", "Bloomingdale's", "Saks Fifth Avenue", "Neiman Marcus", "Shopbop", "Net-a-Porter", "ASOS", "Macy's"};
+    private static final String[] Colors = {"Black", "Navy", "Ivory", "Red", "Blush", "Emerald", "Multi"};
+    private static final String[] Sizes = {"Small", "Medium", "Large", "Original", "IPhone", "IPhoneSmall", "Best"};
+    private static final String[] Fragments = {
+        "Silk-blend crepe de chine dress with a relaxed fit. ",
+        "Fully lined; concealed zip at back. ",
+        "Dry clean only. ",
+        "Made in Italy. ",
+        "Caf\u00e9 au lait colourway, soft pleated skirt \u2013 falls just below the knee. ",
+        "Designer\u2019s signature \"Riviera\" print. ",
+        "100% cotton, machine wash cold. ",
+        "Na\u00efve embroidered d\u00e9tails, cr\u00e8me satin trim. ",
+        "Model is 5'10\" and wears a size S. ",
+        "Imported.\n",
+    };
+    
+    public static String productPage(int count)
+    {
+        Random random = new Random(count);
+        StringBuilder sb = new StringBuilder(count * 3000);
+        sb.append("{\"metadata\":{\"offset\":0,\"limit\":").append(count).append(",\"total\":").append(count * 137);
+        sb.append(",\"category\":{\"id\":\"dresses\",\"name\":\"Dresses\"}},\"products\":[");
+        for (int ii=0; ii<count; ii++) {
+            if (ii > 0) {
+                sb.append(',');
+            }
+            product(sb, random, 400000000 + ii * 7919);
+        }
+        sb.append("]}");
+        return sb.toString();
+    }
+    
+    private static void product(StringBuilder sb, Random random, int id)
+    {
+        String brand = Brands[random.nextInt(Brands.length)];
+        int brandId = 1000 + random.nextInt(Brands.length);
+        int retailer = random.nextInt(Retailers.length);
+        String name = "Printed Wrap Dress " + id;
+        int cents = 4900 + random.nextInt(50000);
+        
+        sb.append("{\"id\":").append(id);
+        sb.append(",\"name\":").append(quote(brand + " " + name));
+        sb.append(",\"brandedName\":").append(quote(brand + " " + name));
+        sb.append(",\"unbrandedName\":").append(quote(name));
+        sb.append(",\"currency\":\"USD\"");
+        sb.append(",\"price\":").append(cents / 100).append('.').append(cents % 100 / 10).append(cents % 10);
+        sb.append(",\"priceLabel\":\"$").append(cents / 100).append('"');
+        sb.append(",\"inStock\":").append(random.nextInt(10) != 0);
+        sb.append(",\"retailer\":{\"id\":\"").append(retailer + 1).append("\",\"name\":").append(quote(Retailers[retailer])).append('}');
+        sb.append(",\"locale\":\"en_US\"");
+        StringBuilder description = new StringBuilder();
+        int pieces = 3 + random.nextInt(6);
+        for (int pp=0; pp<pieces; pp++) {
+            description.append(Fragments[random.nextInt(Fragments.length)]);
+        }
+        sb.append(",\"description\":").append(quote(description.toString()));
+        sb.append(",\"brand\":{\"id\":\"").append(brandId).append("\",\"name\":").append(quote(brand)).append('}');
+        sb.append(",\"url\":\"http://www.shopstyle.com/action/apiVisitRetailer?id=").append(id).append("&pid=uid4025-1234\"");
+        sb.append(",\"clickUrl\":\"http://api.shopstyle.com/action/apiVisitRetailer?id=").append(id).append("&pid=uid4025-1234\"");
+        sb.append(",\"image\":{\"id\":\"").append(Integer.toHexString(id)).append("a1b2c3\",\"sizes\":{");
+        for (int ss=0; ss<Sizes.length; ss++) {
+            if (ss > 0) {
+                sb.append(',');
+            }
+            int width = 112 + ss * 50;
+            sb.append('"').append(Sizes[ss]).append("\":{\"sizeName\":\"").append(Sizes[ss]).append('"');
+            sb.append(",\"width\":").append(width).append(",\"height\":").append(width * 5 / 4);
+            sb.append(",\"url\":\"http://resources.shopstyle.com/pim/c5/").append(id).append('_').append(Sizes[ss].toLowerCase()).append(".jpg\"}");
+        }
+        sb.append("}}");
+        sb.append(",\"colors\":[");
+        int colors = 1 + random.nextInt(3);
+        for (int cc=0; cc<colors; cc++) {
+            if (cc > 0) {
+                sb.append(',');
+            }
+            sb.append("{\"name\":").append(quote(Colors[random.nextInt(Colors.length)])).append('}');
+        }
+        sb.append("],\"categories\":[{\"id\":\"cocktail-dresses\",\"name\":\"Cocktail Dresses\"},{\"id\":\"dresses\",\"name\":\"Dresses\"}]");
+        sb.append(",\"seeMoreUrl\":\"http://www.shopstyle.com/browse/dresses?fl=b").append(brandId).append('"');
+        sb.append(",\"extractDate\":\"2013-05-").append(10 + random.nextInt(18)).append('"');
+        sb.append('}');
+    }
+    
+    public static String retailerList(int count)
+    {
+        Random random = new Random(count);
+        StringBuilder sb = new StringBuilder(count * 120);
+        sb.append("{\"retailers\":[");
+        for (int ii=0; ii<count; ii++) {
+            if (ii > 0) {
+                sb.append(',');
+            }
+            String name = Retailers[random.nextInt(Retailers.length)] + " " + (ii + 1);
+            sb.append("{\"id\":\"").append(ii + 1).append("\",\"name\":").append(quote(name));
+            sb.append(",\"score\":").append(random.nextInt(100));
+            sb.append(",\"deeplinkSupport\":").append(random.nextBoolean());
+            sb.append(",\"hostDomain\":\"www.retailer").append(ii + 1).append(".com\"}");
+        }
+        sb.append("]}");
+        return sb.toString();
+    }
+    
+    private static String quote(String value)
+    {
+        StringBuilder sb = new StringBuilder(value.length() + 8);
+        sb.append('"');
+        for (int ii=0; ii<value.length(); ii++) {
+            char cc = value.charAt(ii);
+            if (cc == '"' || cc == '\\') {
+                sb.append('\\').append(cc);
+            }
+            else if (cc == '\n') {
+                sb.append("\\n");
+            }
+            else {
+                sb.append(cc);
+            }
+        }
+        sb.append('"');
+        return sb.toString();
+    }
+}
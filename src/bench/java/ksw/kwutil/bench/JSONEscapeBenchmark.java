@@ -0,0 +1,161 @@
+package ksw.kwutil.bench;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ksw.kwutil.JSONWriter;
+
+// string escaping in JSONWriter, on text like ShopStyle product descriptions
+// compares the old char-by-char escaper with the writer, escaping non-ASCII and in UTF-8 mode
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JSONEscapeBenchmark
+{
+    // fragments of the kind of thing that turns up in descriptions
+    private static final String[] Fragments = {
+        "Silk-blend crepe de chine dress with a relaxed fit. ",
+        "Fully lined; concealed zip at back. ",
+        "Dry clean only. ",
+        "Made in Italy. ",
+        "Caf\u00e9 au lait colourway, soft pleated skirt \u2013 falls just below the knee. ",
+        "Designer\u2019s signature \"Riviera\" print. ",
+        "100% cotton, machine wash cold. ",
+        "Na\u00efve embroidered d\u00e9tails, cr\u00e8me satin trim. ",
+        "Size 8/10 fits most. ",
+        "Model is 5'10\" and wears a size S. ",
+        "Imported.\n",
+        "\u00c9t\u00e9 collection \u00a9 2013. ",
+    };
+    
+    private List<String> _descriptions;
+    
+    @Setup
+    public void setup()
+    {
+        _descriptions = makeDescriptions(1000);
+        // make sure we're comparing the same output
+        if (!legacyEscape(_descriptions).equals(writerEscape(_descriptions, false))) {
+            throw new IllegalStateException("JSONWriter output doesn't match the legacy escaper");
+        }
+    }
+    
+    @Benchmark
+    public String legacy()
+    {
+        return legacyEscape(_descriptions);
+    }
+    
+    @Benchmark
+    public String escaped()
+    {
+        return writerEscape(_descriptions, false);
+    }
+    
+    @Benchmark
+    public String utf8()
+    {
+        return writerEscape(_descriptions, true);
+    }
+    
+    private static List<String> makeDescriptions(int count)
+    {
+        Random random = new Random(17);
+        List<String> result = new ArrayList<String>(count);
+        for (int ii=0; ii<count; ii++) {
+            StringBuilder sb = new StringBuilder();
+            int pieces = 3 + random.nextInt(8);
+            for (int pp=0; pp<pieces; pp++) {
+                sb.append(Fragments[random.nextInt(Fragments.length)]);
+            }
+            result.add(sb.toString());
+        }
+        return result;
+    }
+    
+    private static String writerEscape(List<String> descriptions, boolean utf8)
+    {
+        StringWriter sw = new StringWriter();
+        JSONWriter jwriter = new JSONWriter(sw);
+        jwriter.setUtf8Output(utf8);
+        jwriter.startArray();
+        for (String dd : descriptions) {
+            jwriter.addItem(null, dd);
+        }
+        jwriter.endArray();
+        jwriter.flush();
+        return sw.toString();
+    }
+    
+    // the way JSONWriter used to do it
+    private static String legacyEscape(List<String> descriptions)
+    {
+        StringBuffer out = new StringBuffer();
+        out.append('[');
+        boolean first = true;
+        for (String value : descriptions) {
+            if (!first) {
+                out.append(',');
+            }
+            first = false;
+            out.append('"');
+            int slen = value.length();
+            for (int ii=0; ii<slen; ii++) {
+                char cc = value.charAt(ii);
+                int ic = (int)cc;
+                if (cc == '"') {
+                    out.append('\\');
+                    out.append(cc);
+                }
+                else if (cc == '\\') {
+                    out.append("\\\\");
+                }
+                else if (cc == '/') {
+                    out.append("\\/");
+                }
+                else if (cc == '\b') {
+                    out.append("\\b");
+                }
+                else if (cc == '\f') {
+                    out.append("\\f");
+                }
+                else if (cc == '\n') {
+                    out.append("\\n");
+                }
+                else if (cc == '\r') {
+                    out.append("\\r");
+                }
+                else if (cc == '\t') {
+                    out.append("\\t");
+                }
+                else if (ic > 0x7f) {
+                    out.append("\\u");
+                    out.append(String.format("%04x", ic));
+                }
+                else {
+                    out.append(cc);
+                }
+            }
+            out.append('"');
+        }
+        out.append(']');
+        return out.toString();
+    }
+}
@@ -0,0 +1,69 @@
+package ksw.kwutil.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ksw.kwutil.JSONReader;
+import ksw.kwutil.JSONReader.JSONParseException;
+
+// parsing the corpus payloads, the three ways JSONReader can build results
+// a new reader for each parse, as the servlets do
+// e.g. java -jar target/benchmarks.jar JSONReaderBenchmark -p payload=page20
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JSONReaderBenchmark
+{
+    @Param({"small", "page20", "retailers5000"})
+    public String payload;
+    
+    private String _text;
+    private Class _setterClass;
+    private Class _readableClass;
+    
+    @Setup
+    public void setup() throws JSONParseException
+    {
+        JSONCorpus.Payload pp = JSONCorpus.Payload.valueOf(payload);
+        _text = pp.getText();
+        _setterClass = pp.getSetterClass();
+        _readableClass = pp.getReadableClass();
+        
+        // make sure the payload reads all three ways before we time anything
+        parse();
+        parseUsingSetters();
+        parseInputAsObject();
+    }
+    
+    @Benchmark
+    public Object parse() throws JSONParseException
+    {
+        return new JSONReader().parse(_text);
+    }
+    
+    @Benchmark
+    public Object parseUsingSetters() throws JSONParseException
+    {
+        return new JSONReader().parseUsingSetters(_text, _setterClass);
+    }
+    
+    @Benchmark
+    public Object parseInputAsObject() throws JSONParseException
+    {
+        return new JSONReader().parseInputAsObject(_text, _readableClass);
+    }
+}
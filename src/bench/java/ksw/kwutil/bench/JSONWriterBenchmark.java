@@ -0,0 +1,125 @@
+package ksw.kwutil.bench;
+
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ksw.kwutil.JSONReader;
+import ksw.kwutil.JSONWriter;
+import ksw.kwutil.JSONReader.JSONParseException;
+import ksw.kwutil.JSONWriter.JSONWriteException;
+import ksw.shopstyle.Product;
+import ksw.shopstyle.Retailer;
+
+// writing the corpus back out - the products and retailers as the ShopStyle actions write them,
+// and the products through their getters (JSONWriteableByGet)
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JSONWriterBenchmark
+{
+    private List<Product> _products;
+    private List<Retailer> _retailers;
+    private List<CorpusBeans.Product> _beans;
+    
+    // somewhere to stream to that doesn't cost anything
+    private static final Writer NullWriter = new Writer() {
+        public void write(char[] chars, int start, int length) {}
+        public void flush() {}
+        public void close() {}
+    };
+    
+    @Setup
+    public void setup() throws JSONParseException, JSONWriteException
+    {
+        String page = JSONCorpus.Payload.page20.getText();
+        Map pageMap = (Map)new JSONReader().parse(page);
+        _products = new ArrayList<Product>();
+        for (Object pm : (List)pageMap.get("products")) {
+            _products.add(Product.fromJSON((Map)pm));
+        }
+        
+        Map retailerMap = (Map)new JSONReader().parse(JSONCorpus.Payload.retailers5000.getText());
+        _retailers = new ArrayList<Retailer>();
+        for (Object rm : (List)retailerMap.get("retailers")) {
+            _retailers.add(Retailer.fromJSON((Map)rm));
+        }
+        
+        CorpusBeans.ProductPage beanPage = (CorpusBeans.ProductPage)new JSONReader().parseUsingSetters(page, CorpusBeans.ProductPage.class);
+        _beans = beanPage.getProducts();
+        writeByGetters();
+    }
+    
+    @Benchmark
+    public String writeProducts()
+    {
+        JSONWriter jwriter = new JSONWriter();
+        jwriter.startArray();
+        for (Product pp : _products) {
+            jwriter.startObject();
+            pp.toJSON(jwriter);
+            jwriter.endObject();
+        }
+        jwriter.endArray();
+        return jwriter.toString();
+    }
+    
+    // as ShopStyleApi does it, straight to the (UTF-8) response
+    @Benchmark
+    public boolean writeProductsStreaming()
+    {
+        JSONWriter jwriter = new JSONWriter(NullWriter);
+        jwriter.setUtf8Output(true);
+        jwriter.startArray();
+        for (Product pp : _products) {
+            jwriter.startObject();
+            pp.toJSON(jwriter);
+            jwriter.endObject();
+        }
+        jwriter.endArray();
+        jwriter.flush();
+        return jwriter.checkError();
+    }
+    
+    @Benchmark
+    public String writeRetailers()
+    {
+        JSONWriter jwriter = new JSONWriter();
+        jwriter.startArray();
+        for (Retailer rr : _retailers) {
+            jwriter.startObject();
+            rr.toJSON(jwriter);
+            jwriter.endObject();
+        }
+        jwriter.endArray();
+        return jwriter.toString();
+    }
+    
+    @Benchmark
+    public String writeByGetters() throws JSONWriteException
+    {
+        JSONWriter jwriter = new JSONWriter();
+        jwriter.startArray();
+        for (CorpusBeans.Product pp : _beans) {
+            jwriter.addItem(null, pp);
+        }
+        jwriter.endArray();
+        return jwriter.toString();
+    }
+}
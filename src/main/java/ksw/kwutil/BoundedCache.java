@@ -0,0 +1,222 @@
+package ksw.kwutil;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// thread-safe cache bounded by total weight (entries, bytes, products - whatever the Weigher counts),
+// evicting the least recently used entries one at a time as new ones come in, rather than all at once
+// entries also expire ttlMs after they were put (0 for never)
+// everything happens under one lock - the work inside it is a hash lookup and a few links, so that's
+// cheap next to anything worth caching
+public class BoundedCache<K, V>
+{
+    // how much an entry counts against the cache's maximum
+    public interface Weigher<K, V>
+    {
+        public int weigh(K key, V value);
+    }
+
+    private final long _maxWeight;
+    private final long _ttlMs;
+    private final Weigher<? super K, ? super V> _weigher;
+
+    // in access order, so the first entry is the least recently used
+    // all guarded by _entries
+    private final LinkedHashMap<K, Entry<V>> _entries;
+    private long _weight;
+    private long _hits;
+    private long _misses;
+    private long _evictions;
+    private long _expirations;
+
+    // each entry weighs 1, so maxWeight is the number of entries
+    public BoundedCache(long maxWeight, long ttlMs)
+    {
+        this(maxWeight, ttlMs, null);
+    }
+
+    public BoundedCache(long maxWeight, long ttlMs, Weigher<? super K, ? super V> weigher)
+    {
+        _maxWeight = maxWeight;
+        _ttlMs = ttlMs;
+        _weigher = weigher;
+        _entries = new LinkedHashMap<K, Entry<V>>(64, 0.75f, true);
+    }
+
+    // the value, or null if it isn't here (or has expired)
+    public V get(K key)
+    {
+        synchronized (_entries) {
+            Entry<V> entry = _entries.get(key);
+            if (entry != null && entry.isExpired(System.currentTimeMillis())) {
+                removeEntry(key, entry);
+                _expirations++;
+                entry = null;
+            }
+            if (entry == null) {
+                _misses++;
+                return null;
+            }
+            _hits++;
+            return entry._value;
+        }
+    }
+
+    // add (or replace) the value, evicting the least recently used entries to make room
+    // a value that weighs more than the whole cache isn't kept
+    public void put(K key, V value)
+    {
+        int weight = (_weigher != null) ? _weigher.weigh(key, value) : 1;
+        long expiresAt = (_ttlMs > 0) ? System.currentTimeMillis() + _ttlMs : Long.MAX_VALUE;
+        Entry<V> entry = new Entry<V>(value, weight, expiresAt);
+        synchronized (_entries) {
+            Entry<V> old = _entries.remove(key);
+            if (old != null) {
+                _weight -= old._weight;
+            }
+            if (weight > _maxWeight) {
+                return;
+            }
+            Iterator<Entry<V>> iter = _entries.values().iterator();
+            while (_weight + weight > _maxWeight && iter.hasNext()) {
+                Entry<V> lru = iter.next();
+                _weight -= lru._weight;
+                iter.remove();
+                _evictions++;
+            }
+            _entries.put(key, entry);
+            _weight += weight;
+        }
+    }
+
+    public void remove(K key)
+    {
+        synchronized (_entries) {
+            Entry<V> entry = _entries.get(key);
+            if (entry != null) {
+                removeEntry(key, entry);
+            }
+        }
+    }
+
+    public void clear()
+    {
+        synchronized (_entries) {
+            _entries.clear();
+            _weight = 0;
+        }
+    }
+
+    // drop everything that has expired (otherwise they go when they're next asked for, or evicted)
+    public void removeExpired()
+    {
+        synchronized (_entries) {
+            long now = System.currentTimeMillis();
+            Iterator<Entry<V>> iter = _entries.values().iterator();
+            while (iter.hasNext()) {
+                Entry<V> entry = iter.next();
+                if (entry.isExpired(now)) {
+                    _weight -= entry._weight;
+                    iter.remove();
+                    _expirations++;
+                }
+            }
+        }
+    }
+
+    private void removeEntry(K key, Entry<V> entry)
+    {
+        _entries.remove(key);
+        _weight -= entry._weight;
+    }
+
+    public int size()
+    {
+        synchronized (_entries) {
+            return _entries.size();
+        }
+    }
+
+    public long getWeight()
+    {
+        synchronized (_entries) {
+            return _weight;
+        }
+    }
+
+    public long getMaxWeight()
+    {
+        return _maxWeight;
+    }
+
+    public long getHits()
+    {
+        synchronized (_entries) {
+            return _hits;
+        }
+    }
+
+    public long getMisses()
+    {
+        synchronized (_entries) {
+            return _misses;
+        }
+    }
+
+    // entries dropped to make room
+    public long getEvictions()
+    {
+        synchronized (_entries) {
+            return _evictions;
+        }
+    }
+
+    public long getExpirations()
+    {
+        synchronized (_entries) {
+            return _expirations;
+        }
+    }
+
+    public void toJSON(JSONWriter jwriter)
+    {
+        synchronized (_entries) {
+            jwriter.addItem("entries", _entries.size());
+            jwriter.addItem("weight", _weight);
+            jwriter.addItem("maxWeight", _maxWeight);
+            jwriter.addItem("hits", _hits);
+            jwriter.addItem("misses", _misses);
+            jwriter.addItem("evictions", _evictions);
+            jwriter.addItem("expirations", _expirations);
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        synchronized (_entries) {
+            return _entries.size() + " entries, weight " + _weight + "/" + _maxWeight + ", " + _hits + " hits, " +
+                   _misses + " misses, " + _evictions + " evictions, " + _expirations + " expirations";
+        }
+    }
+
+    private static class Entry<V>
+    {
+        private final V _value;
+        private final int _weight;
+        private final long _expiresAt;
+
+        Entry(V value, int weight, long expiresAt)
+        {
+            _value = value;
+            _weight = weight;
+            _expiresAt = expiresAt;
+        }
+
+        boolean isExpired(long now)
+        {
+            return now >= _expiresAt;
+        }
+    }
+}
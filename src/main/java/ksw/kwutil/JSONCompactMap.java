@@ -0,0 +1,122 @@
+package ksw.kwutil;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+// read-only map for small parsed objects, see JSONReader.setCompactObjects
+// just the arrays of keys and values - lookup is a linear scan, which for a handful of keys
+// (that are usually interned, so compare by identity) is as fast as hashing
+// and the map is a fraction of the size of a HashMap with its table and entries
+final class JSONCompactMap extends AbstractMap<String, Object>
+{
+    private final String[] _keys;
+    private final Object[] _values;
+    
+    // entries holds alternating keys and values, from start for count pairs
+    // later duplicates of a key replace earlier ones, as they would in a HashMap
+    JSONCompactMap(Object[] entries, int start, int count)
+    {
+        String[] keys = new String[count];
+        Object[] values = new Object[count];
+        int size = 0;
+        for (int ii=0; ii<count; ii++) {
+            String key = (String)entries[start + ii*2];
+            Object value = entries[start + ii*2 + 1];
+            int indx = indexOf(keys, size, key);
+            if (indx >= 0) {
+                values[indx] = value;
+            }
+            else {
+                keys[size] = key;
+                values[size] = value;
+                size++;
+            }
+        }
+        if (size < count) {
+            keys = java.util.Arrays.copyOf(keys, size);
+            values = java.util.Arrays.copyOf(values, size);
+        }
+        _keys = keys;
+        _values = values;
+    }
+    
+    private static int indexOf(String[] keys, int size, Object key)
+    {
+        for (int ii=0; ii<size; ii++) {
+            if (keys[ii] == key) {
+                return ii;
+            }
+        }
+        if (key != null) {
+            for (int ii=0; ii<size; ii++) {
+                if (keys[ii].equals(key)) {
+                    return ii;
+                }
+            }
+        }
+        return -1;
+    }
+    
+    @Override
+    public int size()
+    {
+        return _keys.length;
+    }
+    
+    @Override
+    public Object get(Object key)
+    {
+        int indx = indexOf(_keys, _keys.length, key);
+        return (indx >= 0) ? _values[indx] : null;
+    }
+    
+    @Override
+    public boolean containsKey(Object key)
+    {
+        return indexOf(_keys, _keys.length, key) >= 0;
+    }
+    
+    @Override
+    public Set<Map.Entry<String, Object>> entrySet()
+    {
+        return new AbstractSet<Map.Entry<String, Object>>() {
+            @Override
+            public int size()
+            {
+                return _keys.length;
+            }
+            
+            @Override
+            public Iterator<Map.Entry<String, Object>> iterator()
+            {
+                return new Iterator<Map.Entry<String, Object>>() {
+                    private int _next = 0;
+                    
+                    public boolean hasNext()
+                    {
+                        return _next < _keys.length;
+                    }
+                    
+                    public Map.Entry<String, Object> next()
+                    {
+                        if (_next >= _keys.length) {
+                            throw new NoSuchElementException();
+                        }
+                        Map.Entry<String, Object> entry = new AbstractMap.SimpleImmutableEntry<String, Object>(_keys[_next], _values[_next]);
+                        _next++;
+                        return entry;
+                    }
+                    
+                    public void remove()
+                    {
+                        throw new UnsupportedOperationException("parsed JSON object is read-only");
+                    }
+                };
+            }
+        };
+    }
+}
@@ -0,0 +1,88 @@
+package ksw.kwutil;
+
+// table of the strings used as object keys, so that a key that is read over and over
+// ("id", "name" in every product...) is a single String rather than a new one each time
+// lookups work from the lexer's chars, so a key that is already in the table costs no allocation
+// the table is bounded - once it is full, new keys are simply built as usual
+// it is safe to share between threads: a slot only ever goes from null to an (immutable) String,
+// and losing a race just means a key doesn't get into the table
+public class JSONKeyTable
+{
+    // keys longer than this are unlikely to repeat - don't bother with them
+    private static final int MaxKeyLength = 64;
+    // give up looking after this many slots
+    private static final int MaxProbes = 8;
+    
+    private static final JSONKeyTable _shared = new JSONKeyTable(2048);
+    
+    private final String[] _slots;
+    private final int _maxEntries;
+    private int _count;  // approximate when shared, which is fine for a bound
+    
+    // a table shared by the whole process
+    public static JSONKeyTable getShared()
+    {
+        return _shared;
+    }
+    
+    public JSONKeyTable(int maxEntries)
+    {
+        // keep the table no more than half full, so that probe sequences stay short
+        int size = 16;
+        while (size < maxEntries * 2) {
+            size *= 2;
+        }
+        _slots = new String[size];
+        _maxEntries = maxEntries;
+        _count = 0;
+    }
+    
+    public int size()
+    {
+        return _count;
+    }
+    
+    // get the String for the chars, from the table if possible
+    public String intern(char[] chars, int start, int length)
+    {
+        if (length > MaxKeyLength) {
+            return new String(chars, start, length);
+        }
+        // same hash as String, so we can use the hash each String caches
+        int hash = 0;
+        for (int ii=0; ii<length; ii++) {
+            hash = 31 * hash + chars[start + ii];
+        }
+        int mask = _slots.length - 1;
+        int indx = (hash ^ (hash >>> 16)) & mask;
+        for (int probe=0; probe<MaxProbes; probe++) {
+            String key = _slots[indx];
+            if (key == null) {
+                String newKey = new String(chars, start, length);
+                if (_count < _maxEntries) {
+                    _slots[indx] = newKey;
+                    _count++;
+                }
+                return newKey;
+            }
+            if (key.hashCode() == hash && matches(key, chars, start, length)) {
+                return key;
+            }
+            indx = (indx + 1) & mask;
+        }
+        return new String(chars, start, length);
+    }
+    
+    private static boolean matches(String key, char[] chars, int start, int length)
+    {
+        if (key.length() != length) {
+            return false;
+        }
+        for (int ii=0; ii<length; ii++) {
+            if (key.charAt(ii) != chars[start + ii]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
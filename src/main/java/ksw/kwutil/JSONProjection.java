@@ -0,0 +1,129 @@
+package ksw.kwutil;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// a set of paths into a JSON document, for parsing only the parts we care about
+// (see JSONReader.parse(Reader, JSONProjection))
+// paths are keys separated by dots, with [] stepping into each element of an array:
+//     products[].id
+//     products[].image.sizes.Medium.url
+//     [].name    (elements of a top-level array)
+// the value at the end of a path is kept whole, whatever it is
+// anything not on a path is skipped by the lexer without being built
+// arrays are only entered through a [] step - otherwise they come back empty
+// a projection is immutable once built, so it can be shared by many readers
+public class JSONProjection
+{
+    private Node _root;
+    
+    public JSONProjection(String... paths)
+    {
+        _root = new Node(null);
+        for (String path : paths) {
+            addPath(path);
+        }
+    }
+    
+    Node getRoot()
+    {
+        return _root;
+    }
+    
+    private void addPath(String path)
+    {
+        Node node = _root;
+        String[] steps = path.split("\\.");
+        for (String step : steps) {
+            // split off any [] suffixes
+            int arrayDepth = 0;
+            while (step.endsWith("[]")) {
+                step = step.substring(0, step.length()-2);
+                arrayDepth++;
+            }
+            if (step.length() > 0) {
+                node = node.addChild(step);
+            }
+            for (int ii=0; ii<arrayDepth; ii++) {
+                node = node.addElements();
+            }
+        }
+        node.setLeaf();
+    }
+    
+    // one step in the tree of paths
+    static class Node
+    {
+        private String _name;
+        private boolean _leaf;  // keep the whole value here
+        private Node[] _children;
+        private Node _elements;  // the [] step
+        
+        private Node(String name)
+        {
+            _name = name;
+            _leaf = false;
+            _children = new Node[0];
+            _elements = null;
+        }
+        
+        public String getName()
+        {
+            return _name;
+        }
+        
+        public boolean isLeaf()
+        {
+            return _leaf;
+        }
+        
+        public Node[] getChildren()
+        {
+            return _children;
+        }
+        
+        public Node getElements()
+        {
+            return _elements;
+        }
+        
+        private void setLeaf()
+        {
+            // a leaf keeps everything below it, so there's no need for the finer paths
+            _leaf = true;
+            _children = new Node[0];
+            _elements = null;
+        }
+        
+        private Node addChild(String name)
+        {
+            for (Node child : _children) {
+                if (child._name.equals(name)) {
+                    return child;
+                }
+            }
+            Node child = new Node(name);
+            if (!_leaf) {
+                List<Node> children = new ArrayList<Node>(_children.length+1);
+                for (Node cc : _children) {
+                    children.add(cc);
+                }
+                children.add(child);
+                _children = children.toArray(new Node[children.size()]);
+            }
+            return child;
+        }
+        
+        private Node addElements()
+        {
+            if (_elements == null) {
+                Node elements = new Node("[]");
+                if (_leaf) {
+                    return elements;
+                }
+                _elements = elements;
+            }
+            return _elements;
+        }
+    }
+}
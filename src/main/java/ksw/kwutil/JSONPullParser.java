@@ -0,0 +1,295 @@
+package ksw.kwutil;
+
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import ksw.kwutil.JSONReader.JSONLex;
+import ksw.kwutil.JSONReader.JSONLex.JSONToken;
+import ksw.kwutil.JSONReader.JSONParseException;
+
+// pull (cursor) style access to JSON input
+// rather than building the whole tree of Maps and Lists the way JSONReader.parse does,
+// the caller walks through the input a token at a time, and skips values it doesn't care about
+//
+// typical use, reading an object:
+//     while (parser.nextToken() == Token.Name) {
+//         String field = parser.currentName();
+//         parser.nextToken();
+//         if ("id".equals(field)) {
+//             id = parser.currentInt();
+//         }
+//         else {
+//             parser.skipValue();
+//         }
+//     }
+public class JSONPullParser
+{
+    public enum Token
+    {
+        StartObject, // {
+        EndObject, // }
+        StartArray, // [
+        EndArray, // ]
+        Name, // key within an object - see currentName
+        StringValue,
+        IntValue, // integer - see currentInt and currentLong (values too big for a long are BigDecimals)
+        DoubleValue, // has a fraction or exponent
+        BooleanValue,
+        NullValue,
+        End // end of input
+    }
+    
+    private JSONLex _lexer;
+    private Token _token;
+    private boolean _started;
+    
+    // stack of the containers we're within
+    private int _depth;
+    private boolean[] _inObject;
+    private boolean[] _first;  // true until we've seen the first element in the container
+    private String[] _names;  // the current key in each object
+    private boolean _expectValue;  // we've handed back a name, and the value is next
+    
+    public JSONPullParser(Reader input)
+    {
+        _lexer = new JSONLex();
+        _lexer.setInput(input);
+        _token = null;
+        _started = false;
+        _depth = 0;
+        _inObject = new boolean[16];
+        _first = new boolean[16];
+        _names = new String[16];
+        _expectValue = false;
+    }
+    
+    public JSONPullParser(String input)
+    {
+        this(new StringReader(input));
+    }
+    
+    public JSONPullParser(InputStream input, Charset charset)
+    {
+        this(new InputStreamReader(input, charset));
+    }
+    
+    // share the String objects for names through a table (see JSONKeyTable), null for no sharing
+    public void setKeyTable(JSONKeyTable keyTable)
+    {
+        _lexer.setKeyTable(keyTable);
+    }
+    
+    // move to the next token
+    public Token nextToken() throws JSONParseException
+    {
+        // names are read raw, so that they can come from the key table
+        _lexer.setRawStrings(_depth > 0 && _inObject[_depth - 1] && !_expectValue);
+        JSONToken lt = _lexer.getNextToken();
+        if (_depth == 0) {
+            if (_started) {
+                // the top value is done, there should be nothing more
+                if (lt != JSONToken.JsEnd) {
+                    throw new JSONParseException("Unexpected content after value at " + _lexer.getIndex(), null);
+                }
+                _token = Token.End;
+                return _token;
+            }
+            _started = true;
+            return startValue(lt);
+        }
+        
+        int top = _depth - 1;
+        if (_inObject[top]) {
+            if (_expectValue) {
+                // we've had the name, now the identifier char and the value
+                if (lt != JSONToken.JsIdentifierChar) {
+                    throw new JSONParseException("Did not get expected identifier char when parsing object at " + _lexer.getIndex(), null);
+                }
+                _expectValue = false;
+                _lexer.setRawStrings(false);
+                return startValue(_lexer.getNextToken());
+            }
+            if (lt == JSONToken.JsObjectEnd) {
+                return endContainer(Token.EndObject);
+            }
+            if (!_first[top]) {
+                if (lt != JSONToken.JsSeparator) {
+                    throw new JSONParseException("Object values not separated properly at " + _lexer.getIndex(), null);
+                }
+                lt = _lexer.getNextToken();
+            }
+            _first[top] = false;
+            if (lt != JSONToken.JsString) {
+                throw new JSONParseException("Did not see identifying string when parsing object, saw " + lt + " at " + _lexer.getIndex(), null);
+            }
+            _names[top] = _lexer.getKey();
+            _expectValue = true;
+            _token = Token.Name;
+            return _token;
+        }
+        else {
+            if (lt == JSONToken.JsArrayEnd) {
+                return endContainer(Token.EndArray);
+            }
+            if (!_first[top]) {
+                if (lt != JSONToken.JsSeparator) {
+                    throw new JSONParseException("Array elements not separated by , at " + _lexer.getIndex(), null);
+                }
+                lt = _lexer.getNextToken();
+            }
+            _first[top] = false;
+            return startValue(lt);
+        }
+    }
+    
+    // the token we're positioned at
+    public Token currentToken()
+    {
+        return _token;
+    }
+    
+    // the key of the current value within an object
+    // (after the end of a nested object or array, this is the key for that object or array)
+    public String currentName()
+    {
+        return (_depth > 0 && _inObject[_depth-1]) ? _names[_depth-1] : null;
+    }
+    
+    // the current value, as JSONReader would produce it (for scalar values only)
+    // numbers are boxed here - use currentInt etc to avoid that
+    public Object currentValue()
+    {
+        return isScalar(_token) ? _lexer.getValue() : null;
+    }
+    
+    // the current value as a string - null values give a null
+    public String currentString() throws JSONParseException
+    {
+        if (_token == Token.StringValue) {
+            return (String)_lexer.getValue();
+        }
+        else if (_token == Token.NullValue) {
+            return null;
+        }
+        throw wrongType("string");
+    }
+    
+    public int currentInt() throws JSONParseException
+    {
+        if (_token == Token.IntValue && _lexer.isInt()) {
+            return (int)_lexer.getLongValue();
+        }
+        throw wrongType("int");
+    }
+    
+    public long currentLong() throws JSONParseException
+    {
+        if (_token == Token.IntValue && _lexer.isLong()) {
+            return _lexer.getLongValue();
+        }
+        throw wrongType("long");
+    }
+    
+    // the current value as a double - works for integer values too
+    public double currentDouble() throws JSONParseException
+    {
+        if (_token == Token.DoubleValue || _token == Token.IntValue) {
+            return _lexer.getDoubleValue();
+        }
+        throw wrongType("number");
+    }
+    
+    public boolean currentBoolean() throws JSONParseException
+    {
+        if (_token == Token.BooleanValue) {
+            return (Boolean)_lexer.getValue();
+        }
+        throw wrongType("boolean");
+    }
+    
+    // if we're at the start of an object or array, skip to its end
+    // (so that the next token is whatever follows it)
+    // for other tokens this does nothing
+    // the lexer does the skipping, so none of the skipped strings or numbers are built
+    public void skipValue() throws JSONParseException
+    {
+        if (_token == Token.StartObject) {
+            _lexer.skipRest(true);
+            endContainer(Token.EndObject);
+        }
+        else if (_token == Token.StartArray) {
+            _lexer.skipRest(false);
+            endContainer(Token.EndArray);
+        }
+    }
+    
+    private Token startValue(JSONToken lt) throws JSONParseException
+    {
+        switch (lt) {
+        case JsObjectStart:
+            pushContainer(true);
+            _token = Token.StartObject;
+            break;
+        case JsArrayStart:
+            pushContainer(false);
+            _token = Token.StartArray;
+            break;
+        case JsString:
+            _token = Token.StringValue;
+            break;
+        case JsInt:
+            _token = Token.IntValue;
+            break;
+        case JsDouble:
+            _token = Token.DoubleValue;
+            break;
+        case JsBoolean:
+            _token = Token.BooleanValue;
+            break;
+        case JsNull:
+            _token = Token.NullValue;
+            break;
+        default:
+            throw new JSONParseException("Unexpected token " + lt + " parsing element at " + _lexer.getIndex(), null);
+        }
+        return _token;
+    }
+    
+    private void pushContainer(boolean isObject)
+    {
+        if (_depth == _inObject.length) {
+            int size = _depth * 2;
+            _inObject = Arrays.copyOf(_inObject, size);
+            _first = Arrays.copyOf(_first, size);
+            _names = Arrays.copyOf(_names, size);
+        }
+        _inObject[_depth] = isObject;
+        _first[_depth] = true;
+        _names[_depth] = null;
+        _depth++;
+    }
+    
+    private Token endContainer(Token token)
+    {
+        _depth--;
+        _names[_depth] = null;
+        _token = token;
+        return _token;
+    }
+    
+    private static boolean isScalar(Token token)
+    {
+        return token == Token.StringValue || token == Token.IntValue || token == Token.DoubleValue ||
+               token == Token.BooleanValue || token == Token.NullValue;
+    }
+    
+    private JSONParseException wrongType(String expected)
+    {
+        String where = (currentName() != null) ? " for " + currentName() : "";
+        return new JSONParseException("Expected " + expected + where + " but found " + _token + " at " + _lexer.getIndex(), null);
+    }
+}
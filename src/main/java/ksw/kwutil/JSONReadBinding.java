@@ -0,0 +1,314 @@
+package ksw.kwutil;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import ksw.kwutil.JSONReader.JSONParseException;
+
+// reflective information JSONReader needs to build instances of a class
+// worked out once per class and shared by every reader (a new JSONReader is made for each request,
+// so anything cached in the reader itself gets thrown away)
+// setters and constructors are called through MethodHandles rather than Method.invoke
+class JSONReadBinding
+{
+    private static final ClassValue<JSONReadBinding> _bindings = new ClassValue<JSONReadBinding>() {
+        @Override
+        protected JSONReadBinding computeValue(Class<?> type)
+        {
+            return new JSONReadBinding(type);
+        }
+    };
+    
+    private static final MethodType SetterType = MethodType.methodType(void.class, Object.class, Object.class);
+    private static final MethodType ConstructorType = MethodType.methodType(Object.class);
+    private static final MethodType ReaderConstructorType = MethodType.methodType(Object.class, JSONReader.class);
+    
+    // marks a field name we've looked for and not found
+    private static final ValueType NoValueType = new ValueType(null, null);
+
+    private final Class _class;
+    private final Map<String, Setter> _setters;  // not changed after construction
+    private final ConcurrentMap<String, ValueType> _valueTypes;  // filled in as getValue asks
+    
+    // constructors are only looked up when first needed, since a class generally only uses one of them
+    private volatile MethodHandle _constructor;
+    private volatile MethodHandle _readerConstructor;
+    
+    public static JSONReadBinding forClass(Class objectClass)
+    {
+        return _bindings.get(objectClass);
+    }
+    
+    private JSONReadBinding(Class objectClass)
+    {
+        _class = objectClass;
+        _setters = findSetters(objectClass);
+        _valueTypes = new ConcurrentHashMap<String, ValueType>(16);
+    }
+    
+    public Setter getSetter(String fieldName)
+    {
+        return _setters.get(fieldName);
+    }
+    
+    // make an instance using the no-argument constructor (for JSONReadableBySetters)
+    public Object newInstance() throws JSONParseException
+    {
+        MethodHandle cons = _constructor;
+        Throwable exc = null;
+        try {
+            if (cons == null) {
+                cons = unreflect(_class.getConstructor()).asType(ConstructorType);
+                _constructor = cons;
+            }
+            return (Object)cons.invokeExact();
+        }
+        // an Error (out of memory, say) isn't the class's fault, so let it through
+        catch (Error e) {
+            throw e;
+        }
+        catch (Throwable e) {
+            exc = e;
+        }
+        throw new JSONParseException("Cannot instantiate " + _class.getSimpleName() + " ", exc);
+    }
+    
+    // make an instance using the constructor that takes a JSONReader (for JSONReadable)
+    public Object newReadable(JSONReader reader) throws JSONParseException
+    {
+        MethodHandle cons = _readerConstructor;
+        Throwable exc = null;
+        try {
+            if (cons == null) {
+                cons = unreflect(_class.getConstructor(JSONReader.class)).asType(ReaderConstructorType);
+                _readerConstructor = cons;
+            }
+            return (Object)cons.invokeExact(reader);
+        }
+        catch (Error e) {
+            throw e;
+        }
+        catch (Throwable e) {
+            exc = e;
+        }
+        throw new JSONParseException("buildObject cannot instantiate " + _class.getSimpleName() + " ", exc);
+    }
+    
+    // the type (and list element type) JSONReader.getValue should produce for a field
+    // we look for a field with the name (or with an _ in front), and otherwise a setter
+    // returns null if we can't find one
+    public ValueType getValueType(String fieldName)
+    {
+        ValueType result = _valueTypes.get(fieldName);
+        if (result == null) {
+            result = findValueType(fieldName);
+            _valueTypes.putIfAbsent(fieldName, result);
+        }
+        return (result != NoValueType) ? result : null;
+    }
+    
+    private ValueType findValueType(String fieldName)
+    {
+        try {
+            Field field = getField(fieldName);
+            if (field == null) {
+                field = getField("_"+fieldName);
+            }
+            if (field != null) {
+                return new ValueType(field.getType(), typeParameter(field.getGenericType()));
+            }
+        }
+        catch (ClassCastException exc) {
+            // unusable type parameter - try for a setter
+        }
+        Setter setter = _setters.get(fieldName);
+        if (setter != null) {
+            return new ValueType(setter.getType(), setter.getSubType());
+        }
+        return NoValueType;
+    }
+    
+    private Field getField(String fieldName)
+    {
+        try {
+            return _class.getDeclaredField(fieldName);
+        }
+        catch (Exception exc) {
+            return null;
+        }
+    }
+    
+    // find all the setters of a class
+    // both "setXxx" and "_setXxx" are setters for xxx, and we prefer the _set
+    private static Map<String, Setter> findSetters(Class rClass)
+    {
+        Map<String, Method> methods = new HashMap<String, Method>(30);
+        Method[] ms = rClass.getMethods();
+        if (ms != null) {
+            for (Method meth : ms) {
+                String methodName = meth.getName();
+                String fieldName = null;
+                if (meth.getParameterTypes().length != 1) {
+                    continue;
+                }
+                if (methodName.startsWith("_set")) {
+                    fieldName = methodName.substring(4);
+                }
+                else if (methodName.startsWith("set")) {
+                    fieldName = methodName.substring(3);
+                }
+                if (fieldName == null || fieldName.length() == 0) {
+                    // not a setter
+                    continue;
+                }
+                fieldName = Character.toLowerCase(fieldName.charAt(0)) + fieldName.substring(1);
+                Method old = methods.put(fieldName, meth);
+                if (old != null && methodName.startsWith("set")) {
+                    // whoops, we overrode the _set with the set
+                    // but we want to prefer the _set, so...
+                    methods.put(fieldName, old);
+                }
+            }
+        }
+        
+        Map<String, Setter> setters = new HashMap<String, Setter>(methods.size() * 2);
+        for (Map.Entry<String, Method> entry : methods.entrySet()) {
+            setters.put(entry.getKey(), new Setter(entry.getKey(), entry.getValue()));
+        }
+        return setters;
+    }
+    
+    private static Class typeParameter(Type type)
+    {
+        // calculate a possible generic subtype (for Lists)
+        if (type instanceof ParameterizedType) {
+            return (Class) ((ParameterizedType)type).getActualTypeArguments()[0];
+        }
+        return null;
+    }
+    
+    private static MethodHandle unreflect(Method method) throws IllegalAccessException
+    {
+        makeAccessible(method);
+        return MethodHandles.lookup().unreflect(method);
+    }
+    
+    private static MethodHandle unreflect(Constructor cons) throws IllegalAccessException
+    {
+        makeAccessible(cons);
+        return MethodHandles.lookup().unreflectConstructor(cons);
+    }
+    
+    private static void makeAccessible(java.lang.reflect.AccessibleObject member)
+    {
+        try {
+            // so that public members of non-public classes work
+            member.setAccessible(true);
+        }
+        catch (RuntimeException exc) {
+            // leave the normal access checks in place
+        }
+    }
+    
+    public static class ValueType
+    {
+        private final Class _type;
+        private final Class _subType;
+        
+        private ValueType(Class type, Class subType)
+        {
+            _type = type;
+            _subType = subType;
+        }
+        
+        public Class getType()
+        {
+            return _type;
+        }
+        
+        public Class getSubType()
+        {
+            return _subType;
+        }
+    }
+    
+    public static class Setter
+    {
+        private final String _fieldName;
+        private final Class _type;
+        private final Class _subType;
+        private final boolean _interfaceElements;
+        private final MethodHandle _handle;  // (Object, Object)void
+        private final Exception _handleException;  // why we don't have a handle
+        
+        private Setter(String fieldName, Method method)
+        {
+            _fieldName = fieldName;
+            _type = method.getParameterTypes()[0];
+            Class subType = null;
+            try {
+                subType = typeParameter(method.getGenericParameterTypes()[0]);
+            }
+            catch (ClassCastException exc) {
+                // not a simple type parameter, so we can't instantiate elements
+            }
+            _subType = subType;
+            _interfaceElements = (subType != null && subType.isInterface());
+            
+            MethodHandle handle = null;
+            Exception handleException = null;
+            try {
+                handle = unreflect(method).asType(SetterType);
+            }
+            catch (IllegalAccessException exc) {
+                handleException = exc;
+            }
+            _handle = handle;
+            _handleException = handleException;
+        }
+        
+        public Class getType()
+        {
+            return _type;
+        }
+        
+        public Class getSubType()
+        {
+            return _subType;
+        }
+        
+        // whether the element type of a list is an interface (which we can't build)
+        public boolean hasInterfaceElements()
+        {
+            return _interfaceElements;
+        }
+        
+        public void set(Object readObject, Object value) throws JSONParseException
+        {
+            Throwable exc = _handleException;
+            if (exc == null) {
+                try {
+                    _handle.invokeExact(readObject, value);
+                    return;
+                }
+                catch (Error e) {
+                    throw e;
+                }
+                catch (Throwable e) {
+                    exc = e;
+                }
+            }
+            throw new JSONParseException("failure executing setter for " + _fieldName + " when reading class " + readObject.getClass().getSimpleName() + ": ", exc);
+        }
+    }
+}
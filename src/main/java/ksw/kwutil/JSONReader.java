@@ -1,46 +1,93 @@
 package ksw.kwutil;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
 import java.lang.reflect.Array;
-import java.lang.reflect.Constructor;
+import java.math.BigDecimal;
 import java.lang.reflect.Field;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
-// straightforward parser of JSON input strings
+// straightforward parser of JSON input strings (or streams)
 // see http://www.json.org/ for a description of the language
 
 public class JSONReader
 {
     private JSONLex _lexer;
     
-    private Map<Class, Map<String, Method>> _methodMap;
-    
     // stacks of the current type being constructed
     private List<Class> _typeStack;
     private List<Map<String, Object>> _valuesStack;
+    
+    // objects that are still being parsed keep their keys and values here (alternating),
+    // so that we know the size before we build the map
+    private Object[] _entries;
+    private int _entryCount;
+    
+    // objects with no more than this many keys can be built as compact maps
+    private static final int CompactMaxSize = 16;
+    private boolean _compactObjects;
 
 	public JSONReader()
 	{
 		_lexer = new JSONLex();
-		_methodMap = new HashMap<Class, Map<String, Method>>(5);
+		_entries = new Object[64];
+		_compactObjects = false;
+	}
+	
+	// use a table to share the String objects for keys (see JSONKeyTable), or null for no sharing
+	public void setKeyTable(JSONKeyTable keyTable)
+	{
+		_lexer.setKeyTable(keyTable);
+	}
+	
+	// build small objects as compact read-only maps rather than HashMaps
+	// good for results that are kept around, but the maps can't be changed afterwards
+	public void setCompactObjects(boolean compact)
+	{
+		_compactObjects = compact;
 	}
 	
     // parse a JSON string
     // we'll hand back a value which may be of varying type - a null, or Integer, or Boolean or String
     // or List or Map (the latter two being nested arbitrarily)
     public Object parse(CharSequence input) throws JSONParseException
+    {
+        if (input == null) {
+            throw new JSONParseException("null input", null);
+        }
+        return parse(new StringReader(input.toString()));
+    }
+    
+    // parse JSON from a stream of bytes in the given character set
+    public Object parse(InputStream input, Charset charset) throws JSONParseException
+    {
+        if (input == null) {
+            throw new JSONParseException("null input", null);
+        }
+        return parse(new InputStreamReader(input, charset));
+    }
+    
+    // parse JSON directly from a reader
+    // the input is consumed incrementally, so we never hold more than the lexer's buffer of it
+    // the reader is left open
+    public Object parse(Reader input) throws JSONParseException
     {
         if (input == null) {
             throw new JSONParseException("null input", null);
         }
         Object result = null;
-        _lexer.setInput(input.toString());
+        _lexer.setInput(input);
+        _entryCount = 0;
         // consume the input
         Object topValue = parseValue();
         // make sure we're at the end
@@ -51,6 +98,32 @@ public class JSONReader
         return result;
     }
 
+    // parse only the parts of the input named by the projection
+    // the result has the same shape as parse, but objects only have the projected keys
+    public Object parse(CharSequence input, JSONProjection projection) throws JSONParseException
+    {
+        if (input == null) {
+            throw new JSONParseException("null input", null);
+        }
+        return parse(new StringReader(input.toString()), projection);
+    }
+    
+    public Object parse(Reader input, JSONProjection projection) throws JSONParseException
+    {
+        if (input == null) {
+            throw new JSONParseException("null input", null);
+        }
+        Object result = null;
+        _lexer.setInput(input);
+        _entryCount = 0;
+        Object topValue = parseProjectedValue(projection.getRoot());
+        if (_lexer.getNextToken() == JSONLex.JSONToken.JsEnd) {
+            result = topValue;
+        }
+        
+        return result;
+    }
+
 	public JSONReadableBySetters parseUsingSetters(String input, Class readableClass) throws JSONParseException
 	{
 		Object mapAndLists = parse(input);
@@ -59,11 +132,30 @@ public class JSONReader
 		return result;
 	}
 	
+	public JSONReadableBySetters parseUsingSetters(Reader input, Class readableClass) throws JSONParseException
+	{
+		Object mapAndLists = parse(input);
+		JSONReadableBySetters result = buildObjectUsingSetters(readableClass, (Map<String, Object>)mapAndLists);
+		
+		return result;
+	}
+	
 	// parse a json tree into a single object (which may involve sub-objects getting parsed)
 	// the whole tree must be simple types or JSONReadable classes
 	public JSONReadable parseInputAsObject(String input, Class readableClass) throws JSONParseException
 	{
 		Map<String, Object> mapAndLists = (Map<String, Object>)parse(input);
+		return buildTopObject(readableClass, mapAndLists);
+	}
+	
+	public JSONReadable parseInputAsObject(Reader input, Class readableClass) throws JSONParseException
+	{
+		Map<String, Object> mapAndLists = (Map<String, Object>)parse(input);
+		return buildTopObject(readableClass, mapAndLists);
+	}
+	
+	private JSONReadable buildTopObject(Class readableClass, Map<String, Object> mapAndLists) throws JSONParseException
+	{
 		_typeStack = new ArrayList<Class>(10);
 		_valuesStack = new ArrayList<Map<String, Object>>(10);
 		
@@ -81,18 +173,7 @@ public class JSONReader
 		_typeStack.add(objectClass);
 		_valuesStack.add(parsedValues);
 		
-		JSONReadable result = null;
-		Exception exc = null;
-		try {
-			Constructor cons = objectClass.getConstructor(JSONReader.class);
-			result = (JSONReadable) cons.newInstance(this);
-		}
-		catch (Exception e) {
-			exc = e;
-		}
-		if (exc != null) {
-			throw new JSONParseException("buildObject cannot instantiate " + objectClass.getSimpleName() + " ", exc);
-		}
+		JSONReadable result = (JSONReadable) JSONReadBinding.forClass(objectClass).newReadable(this);
 		
 		_typeStack.remove(_typeStack.size()-1);
 		_valuesStack.remove(_valuesStack.size()-1);
@@ -105,55 +186,13 @@ public class JSONReader
 		// we're using the type currently at the top of the stack
 		Class objectType = _typeStack.get(_typeStack.size()-1);
 
-		// see if there is a field with the expected name
-		Class fieldType;
-		Class subType = null;
-		try {
-			Field field = getField(objectType, fieldName);
-			if (field == null) {
-				field = getField(objectType, "_"+fieldName);
-			}
-		    fieldType = field.getType();
-			// calculate a possible generic subtype (for Lists)
-			Type ft = field.getGenericType();
-			if (ft instanceof ParameterizedType) {
-				subType = (Class) ((ParameterizedType)ft).getActualTypeArguments()[0];
-			}
-		}
-		catch(Exception exc) {
-			fieldType = null;
-		}
-		if (fieldType == null) {
-			// try finding a setter
-			Map<String, Method> methods = getSetterMethods(objectType);
-			Method setterMethod = methods.get(fieldName);
-			if (setterMethod != null) {
-				fieldType = setterMethod.getParameterTypes()[0];
-				// calculate a possible generic subtype (for Lists)
-				Type ft = setterMethod.getGenericParameterTypes()[0];
-				if (ft instanceof ParameterizedType) {
-					subType = (Class) ((ParameterizedType)ft).getActualTypeArguments()[0];
-				}
-			}
-		}
-		
-		if (fieldType == null) {
+		// see if there is a field (or setter) with the expected name
+		JSONReadBinding.ValueType valueType = JSONReadBinding.forClass(objectType).getValueType(fieldName);
+		if (valueType == null) {
     		throw new JSONParseException("no type discoverable for " + fieldName + " when reading class " + objectType.getSimpleName(), null);
 		}
 		
-		return getValue(fieldName, fieldType, subType);
-	}
-	
-	private Field getField(Class objectClass, String fieldName)
-	{
-		Field result;
-		try {
-		    result = objectClass.getDeclaredField(fieldName);
-		}
-		catch(Exception exc) {
-			result = null;
-		}
-		return result;
+		return getValue(fieldName, valueType.getType(), valueType.getSubType());
 	}
 	
 	public Object getValue(String fieldName, Class fieldType, Class fieldSubType) throws JSONParseException
@@ -167,40 +206,18 @@ public class JSONReader
 
 	public JSONReadableBySetters buildObjectUsingSetters(Class oClass, Map<String, Object> values) throws JSONParseException
 	{
-		Map<String, Method> methods = getSetterMethods(oClass);
+		JSONReadBinding binding = JSONReadBinding.forClass(oClass);
 		
-		// construct an instance of the class, using the JSONReader constructor
-		JSONReadableBySetters result = null;
-		Exception exc = null;
-		try {
-			Constructor cons = oClass.getConstructor();
-			result = (JSONReadableBySetters) cons.newInstance();
-		}
-		catch (InstantiationException e) {
-			exc = e;
-		}
-		catch (IllegalAccessException e) {
-			exc = e;
-		} catch (SecurityException e) {
-			exc = e;
-		} catch (NoSuchMethodException e) {
-			exc = e;
-		} catch (IllegalArgumentException e) {
-			exc = e;
-		} catch (InvocationTargetException e) {
-			exc = e;
-		}
-		if (exc != null) {
-			throw new JSONParseException("Cannot instantiate " + oClass.getSimpleName() + " ", exc);
-		}
-		
-		for (String fieldName : values.keySet()) {
-			Object parsedValue = values.get(fieldName);
-			Method setterMethod = methods.get(fieldName);
-			if (setterMethod == null) {
+		// construct an instance of the class, using the no-argument constructor
+		JSONReadableBySetters result = (JSONReadableBySetters) binding.newInstance();
+		
+		for (Map.Entry<String, Object> entry : values.entrySet()) {
+			String fieldName = entry.getKey();
+			JSONReadBinding.Setter setter = binding.getSetter(fieldName);
+			if (setter == null) {
 	    		throw new JSONParseException("no setter for " + fieldName + " when reading class " + oClass.getSimpleName(), null);
 			}
-			setReadableValue(result, fieldName, setterMethod, parsedValue);
+			setReadableValue(result, fieldName, setter, entry.getValue());
 		}
 		
 		// call the object and let it get a chance to clean up
@@ -209,46 +226,6 @@ public class JSONReader
 		return result;
 	}
 	
-	// fetch (possibly initializing) a map of setter methods for a class
-	private Map<String, Method> getSetterMethods(Class<JSONReadableBySetters> rClass)
-	{
-		Map<String, Method> methods = _methodMap.get(rClass);
-		if (methods == null) {
-			// find all the setters
-			methods = new HashMap<String, Method>(30);
-			_methodMap.put(rClass, methods);
-			Method[] ms = rClass.getMethods();
-			if (ms != null) {
-				for (Method meth : ms) {
-					String methodName = meth.getName();
-					String fieldName = null;
-					if (meth.getParameterTypes().length != 1) {
-						continue;
-					}
-					if (methodName.startsWith("_set")) {
-						fieldName = methodName.substring(4);
-					}
-					else if (methodName.startsWith("set")) {
-						fieldName = methodName.substring(3);
-					}
-					if (fieldName == null) {
-						// not a setter
-						continue;
-					}
-					fieldName = Character.toLowerCase(fieldName.charAt(0)) + fieldName.substring(1);
-					Method old = methods.put(fieldName, meth);
-					if (old != null && methodName.startsWith("set")) {
-						// whoops, we overrode the _set with the set
-						// but we want to prefer the _set, so...
-						methods.put(fieldName, old);
-					}
-				}
-			}
-		}
-		
-		return methods;
-	}
-	
 	private Object calculateReadableValue(String readClassName, String fieldName, Class fieldType, Class fieldSubType, Object parsedValue) throws JSONParseException
 	{
 		// default, works for simple types
@@ -298,97 +275,16 @@ public class JSONReader
 		return setValue;
 	}
 	
-	private void setReadableValue(JSONReadableBySetters readObject, String fieldName, Method setterMethod, Object parsedValue) throws JSONParseException
+	private void setReadableValue(JSONReadableBySetters readObject, String fieldName, JSONReadBinding.Setter setter, Object parsedValue) throws JSONParseException
 	{
 		Class objectType = readObject.getClass();
 		
-		// the type that the setter expects
-		Class fieldType = setterMethod.getParameterTypes()[0];
-		
-		Class fieldSubType = null;
-		Type tt = setterMethod.getGenericParameterTypes()[0];
-		if (tt instanceof ParameterizedType) {
-			fieldSubType = (Class) ((ParameterizedType)tt).getActualTypeArguments()[0];
-			if (fieldSubType.isInterface()) {
-				throw new JSONParseException("cannot instantiate interface elements - field " + fieldName + " when reading class " + objectType.getSimpleName(), null);
-			}
-		}
-		Object setValue = calculateReadableValue(objectType.getSimpleName(), fieldName, fieldType, fieldSubType, parsedValue);
-		
-		/*
-		Class valueType = (parsedValue != null) ? parsedValue.getClass() : null;
-		
-		// default, works for simple types
-		// note that value may be null
-		Object setValue = parsedValue;
-		
-		if (JSONReadableBySetters.class.isAssignableFrom(fieldType)) {
-			// we're setting an object
-			// we need to instantiate it with the map in value
-			if (parsedValue != null && !Map.class.isAssignableFrom(valueType)) {
-				throw new JSONParseException("did not have map value for " + fieldName + " when reading class " + objectType.getSimpleName());
-			}
-			JSONReadableBySetters subObject = null;
-			if (parsedValue != null) {
-				subObject = buildObjectUsingSetters(fieldType, (Map<String,Object>)parsedValue);
-            }
-			setValue = subObject;
+		if (setter.hasInterfaceElements()) {
+			throw new JSONParseException("cannot instantiate interface elements - field " + fieldName + " when reading class " + objectType.getSimpleName(), null);
 		}
-		else if (fieldType.isArray() || List.class.isAssignableFrom(fieldType)) {
-			// we're setting either a list or array
-			// instantiate items from the list in value and put them into a list or array
-			// and then use that as the setter value
-			if (parsedValue != null && !List.class.isAssignableFrom(valueType)) {
-				throw new JSONParseException("did not have list value for " + fieldName + " when reading class " + objectType.getSimpleName());
-			}
-			Class subType = null;
-			
-			if (fieldType.isArray()) {
-				subType = fieldType.getComponentType();
-				setValue = buildArray(subType, (List)parsedValue);
-			}
-			else {
-				// figure out the parameterized type, if any, of the list
-				Type tt = setterMethod.getGenericParameterTypes()[0];
-				if (tt instanceof ParameterizedType) {
-					subType = (Class) ((ParameterizedType)tt).getActualTypeArguments()[0];
-					if (subType.isInterface()) {
-						throw new JSONParseException("cannot instantiate interface elements - field " + fieldName + " when reading class " + objectType.getSimpleName());
-					}
-				}
-				setValue = buildList(subType, (List)parsedValue);
-			}
-		}
-		*/
+		Object setValue = calculateReadableValue(objectType.getSimpleName(), fieldName, setter.getType(), setter.getSubType(), parsedValue);
 		
-		Exception exc = null;
-		try {
-			/*
-			if (fieldType == Integer.TYPE) {
-				Integer iValue = ((Integer)setValue);
-				setterMethod.invoke(readObject, iValue);
-			}
-			else {
-				setterMethod.invoke(readObject, fieldType.cast(setValue));
-			}
-			*/
-			setterMethod.invoke(readObject, setValue);
-		}
-		catch (ClassCastException e) {
-			exc = e;
-		}
-		catch (IllegalArgumentException e) {
-			exc = e;
-		}
-		catch (IllegalAccessException e) {
-			exc = e;
-		}
-		catch (InvocationTargetException e) {
-			exc = e;
-		}
-		if (exc != null) {
-			throw new JSONParseException("failure executing setter for " + fieldName + " when reading class " + objectType.getSimpleName() + ": ", exc);
-		}
+		setter.set(readObject, setValue);
 	}
 	
 	private Object[] buildArray(Class elementType, List values) throws JSONParseException
@@ -514,13 +410,16 @@ public class JSONReader
 	{
 		// we're here because there was an object start
 		// we should see identifer element separator... until the end
-		Map result = new HashMap();
+		// keys are read raw, so they can come from the key table
+		int base = _entryCount;
+		_lexer.setRawStrings(true);
 		boolean isFirst = true;
 		while (true) {
 			// get the identifier
 			JSONLex.JSONToken token = _lexer.getNextToken();
 			if (token == JSONLex.JSONToken.JsObjectEnd) {
-				return result;
+				_lexer.setRawStrings(false);
+				return buildMap(base);
 			}
 			
 			if (!isFirst) {
@@ -539,15 +438,147 @@ public class JSONReader
 			if (token != JSONLex.JSONToken.JsString) {
 				throw new JSONParseException("Did not see identifying string when parsing object, saw " + token + " at " + _lexer.getIndex(), null);
 			}
-			String key = (String)_lexer.getValue();
+			String key = _lexer.getKey();
 			token = _lexer.getNextToken();
 			if (token != JSONLex.JSONToken.JsIdentifierChar) {
 				throw new JSONParseException("Did not get expected identifier char when parsing object", null);
 			}
 			
 			// get the value
+			_lexer.setRawStrings(false);
 			Object value = parseValue();
-			result.put(key, value);
+			_lexer.setRawStrings(true);
+			addEntry(key, value);
+		}
+	}
+	
+	private void addEntry(String key, Object value)
+	{
+		if (_entryCount + 2 > _entries.length) {
+			_entries = Arrays.copyOf(_entries, _entries.length * 2);
+		}
+		_entries[_entryCount++] = key;
+		_entries[_entryCount++] = value;
+	}
+	
+	// make the map for the object whose entries start at base, and pop them
+	private Map buildMap(int base)
+	{
+		int count = (_entryCount - base) / 2;
+		Map result;
+		if (_compactObjects && count <= CompactMaxSize) {
+			result = new JSONCompactMap(_entries, base, count);
+		}
+		else {
+			// big enough that it won't need to rehash
+			result = new HashMap(Math.max(16, (int)(count / 0.75f) + 1));
+			for (int ii=base; ii<_entryCount; ii+=2) {
+				result.put(_entries[ii], _entries[ii + 1]);
+			}
+		}
+		// don't hang on to the values
+		Arrays.fill(_entries, base, _entryCount, null);
+		_entryCount = base;
+		return result;
+	}
+	
+	private Object parseProjectedValue(JSONProjection.Node node) throws JSONParseException
+	{
+		if (node.isLeaf()) {
+			// keep all of it
+			return parseValue();
+		}
+		JSONLex.JSONToken token = _lexer.getNextToken();
+		if (token == JSONLex.JSONToken.JsArrayStart) {
+			return parseProjectedArray(node.getElements());
+		}
+		else if (token == JSONLex.JSONToken.JsObjectStart) {
+			return parseProjectedObject(node);
+		}
+		else if (token == JSONLex.JSONToken.JsString || token == JSONLex.JSONToken.JsInt || token == JSONLex.JSONToken.JsDouble ||
+				 token == JSONLex.JSONToken.JsBoolean || token == JSONLex.JSONToken.JsNull) {
+			return _lexer.getValue();
+		}
+		else {
+			throw new JSONParseException("Unexpected token parsing element", null);
+		}
+	}
+	
+	// elements is null if the projection doesn't step into this array
+	private List parseProjectedArray(JSONProjection.Node elements) throws JSONParseException
+	{
+		List result = new ArrayList();
+		if (elements == null) {
+			_lexer.skipRest(false);
+			return result;
+		}
+		JSONLex.JSONToken token = _lexer.getNextToken();
+		if (token == JSONLex.JSONToken.JsArrayEnd) {
+			return result;
+		}
+		_lexer.push();
+		while (true) {
+			result.add(parseProjectedValue(elements));
+			token = _lexer.getNextToken();
+			if (token == JSONLex.JSONToken.JsArrayEnd) {
+				return result;
+			}
+			if (token != JSONLex.JSONToken.JsSeparator) {
+				throw new JSONParseException("Array elements not separated by ,", null);
+			}
+		}
+	}
+	
+	private Map parseProjectedObject(JSONProjection.Node node) throws JSONParseException
+	{
+		JSONProjection.Node[] children = node.getChildren();
+		int base = _entryCount;
+		if (children.length == 0) {
+			_lexer.skipRest(true);
+			return buildMap(base);
+		}
+		
+		// keys are compared in place, we only keep the names from the projection
+		_lexer.setRawStrings(true);
+		boolean isFirst = true;
+		while (true) {
+			JSONLex.JSONToken token = _lexer.getNextToken();
+			if (token == JSONLex.JSONToken.JsObjectEnd) {
+				_lexer.setRawStrings(false);
+				return buildMap(base);
+			}
+			if (!isFirst) {
+				if (token != JSONLex.JSONToken.JsSeparator) {
+					throw new JSONParseException("Object values not separated properly at " + _lexer.getIndex(), null);
+				}
+				token = _lexer.getNextToken();
+			}
+			else {
+				isFirst = false;
+			}
+			if (token != JSONLex.JSONToken.JsString) {
+				throw new JSONParseException("Did not see identifying string when parsing object, saw " + token + " at " + _lexer.getIndex(), null);
+			}
+			JSONProjection.Node child = null;
+			for (JSONProjection.Node cc : children) {
+				if (_lexer.textEquals(cc.getName())) {
+					child = cc;
+					break;
+				}
+			}
+			token = _lexer.getNextToken();
+			if (token != JSONLex.JSONToken.JsIdentifierChar) {
+				throw new JSONParseException("Did not get expected identifier char when parsing object", null);
+			}
+			
+			if (child != null) {
+				_lexer.setRawStrings(false);
+				addEntry(child.getName(), parseProjectedValue(child));
+				_lexer.setRawStrings(true);
+			}
+			else {
+				_lexer.skipValue();
+			}
 		}
 	}
 	
@@ -715,14 +746,70 @@ public class JSONReader
 		}
 	}
 
-	private static class JSONLex
+	// also used by JSONPullParser
+	static class JSONLex
 	{
-		private String _json;
-		private int _index;
+		// size of the window of input we hold at any one time
+		private static final int BufferSize = 8 * 1024;
+
+		private Reader _input;
+		private char[] _buffer;
+		private int _pos;  // next char to be read in _buffer
+		private int _limit;  // end of the valid chars in _buffer
+		private long _consumed;  // count of chars that were in the buffer before the current fill
 		private Object _value;
 		
+		// scratch space for tokens that span buffer fills or have escape sequences
+		private char[] _text;
+		private int _textLength;
+		
 		// to support pushing a token back on the stream
-		private int _oldIndex;
+		private JSONToken _token;
+		private boolean _pushed;
+		
+		// when set, string values are not turned into Strings - their chars are left
+		// where they are (see textEquals), valid until the next token is read
+		private boolean _rawStrings;
+		private char[] _rawChars;
+		private int _rawStart;
+		private int _rawLength;
+		
+		// open containers while skipping (true for objects)
+		private boolean[] _skipStack;
+		
+		// if set, keys are shared through this
+		private JSONKeyTable _keyTable;
+		
+		// the current number, kept unboxed until getValue is called
+		private static final int NumInt = 0;
+		private static final int NumLong = 1;
+		private static final int NumDouble = 2;
+		private static final int NumBig = 3;  // integer too big for a long
+		private int _numberKind;
+		private long _longValue;
+		private double _doubleValue;
+		private BigDecimal _bigValue;
+		private boolean _boxPending;
+		
+		// boxed values for the small non-negative ints that show up all the time (counts, prices...)
+		private static final Integer[] SmallInts = new Integer[1024];
+		static {
+			for (int ii=0; ii<SmallInts.length; ii++) {
+				SmallInts[ii] = Integer.valueOf(ii);
+			}
+		}
+		
+		// doubles can represent integers up to 2^53 and powers of ten up to 10^22 exactly
+		private static final long MaxExactMantissa = 1L << 53;
+		private static final int MaxExactPower = 22;
+		private static final double[] PowersOfTen = new double[MaxExactPower + 1];
+		static {
+			double power = 1.0;
+			for (int ii=0; ii<=MaxExactPower; ii++) {
+				PowersOfTen[ii] = power;
+				power *= 10.0;
+			}
+		}
 
 		enum JSONToken
 		{
@@ -743,45 +830,140 @@ public class JSONReader
 
 		public JSONLex()
 		{
-			_json = null;
-			_index = 0;
-			_oldIndex = 0;
+			_input = null;
+			_buffer = new char[BufferSize];
+			_text = new char[64];
+			_skipStack = new boolean[16];
+		}
+		
+		// start reading from a new input
+		// the reader is not closed by the lexer, that's up to the caller
+		public void setInput(Reader input)
+		{
+			_input = input;
+			_pos = 0;
+			_limit = 0;
+			_consumed = 0;
+			_token = null;
+			_pushed = false;
+			_rawStrings = false;
+		}
+		
+		public void setRawStrings(boolean raw)
+		{
+			_rawStrings = raw;
+		}
+		
+		public void setKeyTable(JSONKeyTable keyTable)
+		{
+			_keyTable = keyTable;
+		}
+		
+		// the current (raw) string token as an object key - from the key table if we have one
+		public String getKey()
+		{
+			if (_keyTable != null) {
+				return _keyTable.intern(_rawChars, _rawStart, _rawLength);
+			}
+			return new String(_rawChars, _rawStart, _rawLength);
+		}
+		
+		// compare the current (raw) string token with a value, without building a String
+		public boolean textEquals(String value)
+		{
+			if (value.length() != _rawLength) {
+				return false;
+			}
+			for (int ii=0; ii<_rawLength; ii++) {
+				if (_rawChars[_rawStart + ii] != value.charAt(ii)) {
+					return false;
+				}
+			}
+			return true;
+		}
+		
+		// skip over the next value in the input, without building any of it
+		public void skipValue() throws JSONParseException
+		{
+			JSONToken token = getNextToken();
+			if (token == JSONToken.JsObjectStart) {
+				skipRest(true);
+			}
+			else if (token == JSONToken.JsArrayStart) {
+				skipRest(false);
+			}
+			else if (token != JSONToken.JsString && token != JSONToken.JsInt && token != JSONToken.JsDouble &&
+					 token != JSONToken.JsBoolean && token != JSONToken.JsNull) {
+				throw new JSONParseException("Unexpected token " + token + " skipping value at " + getIndex(), null);
+			}
 		}
 		
-		public void setInput(String json)
+		// skip the rest of an object or array whose start we've already read
+		// this only checks that brackets are matched - we don't care about the details of what we skip
+		public void skipRest(boolean isObject) throws JSONParseException
 		{
-			_json = json;
-			_index = 0;
+			boolean wasRaw = _rawStrings;
+			_rawStrings = true;
+			int depth = 0;
+			_skipStack[depth++] = isObject;
+			while (depth > 0) {
+				JSONToken token = getNextToken();
+				switch (token) {
+				case JsObjectStart:
+				case JsArrayStart:
+					if (depth == _skipStack.length) {
+						_skipStack = Arrays.copyOf(_skipStack, depth * 2);
+					}
+					_skipStack[depth++] = (token == JSONToken.JsObjectStart);
+					break;
+				case JsObjectEnd:
+				case JsArrayEnd:
+					if (_skipStack[--depth] != (token == JSONToken.JsObjectEnd)) {
+						throw new JSONParseException("Mismatched " + token + " skipping value at " + getIndex(), null);
+					}
+					break;
+				case JsUnknown:
+				case JsEnd:
+					throw new JSONParseException("Unexpected " + token + " skipping value at " + getIndex(), null);
+				default:
+					break;
+				}
+			}
+			_rawStrings = wasRaw;
 		}
 
-		public int getIndex()
+		public long getIndex()
 		{
-			return _index;
+			return _consumed + _pos;
 		}
 
-		public JSONToken getNextToken()
+		public JSONToken getNextToken() throws JSONParseException
 		{
-			_value = null;
-			if (_json == null) {
-				return JSONToken.JsEnd;
+			if (_pushed) {
+				// hand back the token (and value) we already have
+				_pushed = false;
+				return _token;
 			}
-			
-			// remember the start index so that we can back up to it
-			_oldIndex = _index;
+			_token = readToken();
+			return _token;
+		}
+		
+		private JSONToken readToken() throws JSONParseException
+		{
+			_value = null;
+			_boxPending = false;
 			
 			// there are many single-character tokens
 			// and we skip white space
-			char cc = 0;
-			while (_index < _json.length()) {
-				cc = _json.charAt(_index++);
-				if (!Character.isWhitespace(cc)) {
-					break;
-				}
-			}
-			if (cc == 0 || Character.isWhitespace(cc)) {
+			int ic;
+			do {
+				ic = readChar();
+			} while (ic >= 0 && Character.isWhitespace(ic));
+			if (ic < 0) {
 				// we hit the end of the input
 				return JSONToken.JsEnd;
 			}
+			char cc = (char)ic;
 
 			// decide based on that character
 			switch (cc) {
@@ -800,16 +982,17 @@ public class JSONReader
 			case ':':
 				return JSONToken.JsIdentifierChar;
 			case 't':
+				return consumeLiteral("rue", JSONToken.JsBoolean, Boolean.TRUE);
 			case 'f':
-				return consumeBoolean();
+				return consumeLiteral("alse", JSONToken.JsBoolean, Boolean.FALSE);
 			case 'n':
-				return consumeNull();
+				return consumeLiteral("ull", JSONToken.JsNull, null);
 			case '-':
-				return consumeNumber();
+				return consumeNumber(cc);
 			default:
 				// should be a number
 				if (cc >= '0' && cc <= '9') {
-					return consumeNumber();
+					return consumeNumber(cc);
 				}
 				else {
 					return JSONToken.JsUnknown;
@@ -818,187 +1001,371 @@ public class JSONReader
 		}
 		
 		// get the previous chunk of input, for debugging
+		// (limited to what is still in the buffer)
 		public String getPreviousContent()
 		{
-		    int start = _index - 80;
+		    int start = _pos - 80;
 		    if (start < 0) {
 		        start = 0;
 		    }
-		    return _json.substring(start, _index);
+		    return new String(_buffer, start, _pos - start);
 		}
 		
 		public Object getValue()
 		{
+			if (_boxPending) {
+				_value = boxNumber();
+				_boxPending = false;
+			}
 			return _value;
 		}
 		
 		// back up so that we'll re-read the same token
 		public void push()
 		{
-		    _index = _oldIndex;
+		    _pushed = true;
+		}
+		
+		// get the next char of input, or -1 at the end
+		private int readChar() throws JSONParseException
+		{
+			if (_pos >= _limit && !fill()) {
+				return -1;
+			}
+			return _buffer[_pos++];
+		}
+		
+		// look at the next char of input without consuming it, or -1 at the end
+		private int peekChar() throws JSONParseException
+		{
+			if (_pos >= _limit && !fill()) {
+				return -1;
+			}
+			return _buffer[_pos];
+		}
+		
+		// read the next chunk of input into the buffer
+		// returns false if there is no more input
+		private boolean fill() throws JSONParseException
+		{
+			if (_input == null) {
+				return false;
+			}
+			int nread;
+			try {
+				do {
+					nread = _input.read(_buffer, 0, _buffer.length);
+				} while (nread == 0);
+			}
+			catch (IOException exc) {
+				throw new JSONParseException("Error reading input at " + getIndex(), exc);
+			}
+			if (nread < 0) {
+				// leave the old content in place, for getPreviousContent
+				_input = null;
+				return false;
+			}
+			_consumed += _limit;
+			_pos = 0;
+			_limit = nread;
+			return true;
+		}
+		
+		private void appendText(char cc)
+		{
+			if (_textLength == _text.length) {
+				_text = Arrays.copyOf(_text, _text.length * 2);
+			}
+			_text[_textLength++] = cc;
+		}
+		
+		private void appendText(char[] chars, int start, int length)
+		{
+			if (_textLength + length > _text.length) {
+				_text = Arrays.copyOf(_text, Math.max(_text.length * 2, _textLength + length));
+			}
+			System.arraycopy(chars, start, _text, _textLength, length);
+			_textLength += length;
 		}
 
-		private JSONToken consumeString()
+		private JSONToken consumeString() throws JSONParseException
 		{
 			// we will be called after the beginning double-quote has been passed
-			char cc = 0;
-			int start = _index;
-			boolean escaping = false;
-			StringBuilder composedValue = null;  // in case we have to put together the value from escape sequences
-			while (_index < _json.length()) {
-				cc = _json.charAt(_index++);
-				if (!escaping) {
-					if (cc == '"') {
-						break;
-					}
-					else if (cc == '\\') {
-						// start of escape sequence
-						escaping = true;
-						if (composedValue == null) {
-							composedValue = new StringBuilder();
-							if (_index > start) {
-								composedValue.append(_json.substring(start, _index-1));
-							}
-						}
-					}
-					else if (composedValue != null) {
-						composedValue.append(cc);
-					}
+			// usual case is that the whole string is in the buffer, with no escapes
+			int start = _pos;
+			while (_pos < _limit) {
+				char cc = _buffer[_pos];
+				if (cc == '"') {
+					setStringValue(_buffer, start, _pos - start);
+					_pos++;
+					return JSONToken.JsString;
 				}
-				else {
-					// handle escape sequence
-					switch(cc) {
-					case '"':
-					case '\\':
-					case '/':
-						composedValue.append(cc);
-						break;
-					case 'b':
-						composedValue.append('\b');
-						break;
-					case 'f':
-						composedValue.append('\f');
-						break;
-					case 'n':
-						composedValue.append('\n');
-						break;
-					case 'r':
-						composedValue.append('\r');
-						break;
-					case 't':
-						composedValue.append('\t');
-						break;
-					case 'u':
-						// should have 4 hex char unicode sequence here
-						if (_json.length() < _index+4) {
-							return JSONToken.JsUnknown;
-						}
-						String hexValue = _json.substring(_index, _index+4);
-						int value = 0;
-						try {
-							value = Integer.parseInt(hexValue, 16);
-						}
-						catch(NumberFormatException exc) {
-							return JSONToken.JsUnknown;
-						}
-						composedValue.append((char)value);
-						_index += 4;
-					}
-					escaping = false;
+				else if (cc == '\\') {
+					break;
 				}
-				
+				_pos++;
 			}
-			if (cc != '"') {
-				// we didn't see the end delimiter
-				return JSONToken.JsUnknown;
+			
+			// otherwise we put together the value in our scratch space
+			_textLength = 0;
+			appendText(_buffer, start, _pos - start);
+			while (true) {
+				int cc = readChar();
+				if (cc < 0) {
+					// we didn't see the end delimiter
+					return JSONToken.JsUnknown;
+				}
+				if (cc == '"') {
+					break;
+				}
+				if (cc == '\\') {
+					cc = consumeEscape();
+					if (cc == -1) {
+						return JSONToken.JsUnknown;
+					}
+					else if (cc < 0) {
+						// unknown escape, drop it
+						continue;
+					}
+				}
+				appendText((char)cc);
 			}
 			
 			// save the value
-			if (composedValue != null) {
-				_value = composedValue.toString();
+			setStringValue(_text, 0, _textLength);
+			return JSONToken.JsString;
+		}
+		
+		private void setStringValue(char[] chars, int start, int length)
+		{
+			if (_rawStrings) {
+				_rawChars = chars;
+				_rawStart = start;
+				_rawLength = length;
 			}
 			else {
-				_value = _json.substring(start, _index-1);
+				_value = new String(chars, start, length);
 			}
-			return JSONToken.JsString;
 		}
 		
-		private JSONToken consumeBoolean()
+		// handle escape sequence, we're called after the backslash
+		// returns the escaped char, -1 for bad input or -2 for an unknown escape
+		private int consumeEscape() throws JSONParseException
 		{
-			// we've already consumed the first char, look at it again
-			char first = _json.charAt(_index-1);
-			if (first == 'f') {
-				if (_json.length() >= _index+4 && _json.substring(_index-1, _index+4).equals("false")) {
-					_value = Boolean.FALSE;
-					_index += 4;
-					return JSONToken.JsBoolean;
-				}
-			}
-			else if (first == 't') {
-				if (_json.length() >= _index+3 && _json.substring(_index-1, _index+3).equals("true")) {
-					_value = Boolean.TRUE;
-					_index += 3;
-					return JSONToken.JsBoolean;
+			int cc = readChar();
+			switch(cc) {
+			case '"':
+			case '\\':
+			case '/':
+				return cc;
+			case 'b':
+				return '\b';
+			case 'f':
+				return '\f';
+			case 'n':
+				return '\n';
+			case 'r':
+				return '\r';
+			case 't':
+				return '\t';
+			case 'u':
+				// should have 4 hex char unicode sequence here
+				int value = 0;
+				for (int ii=0; ii<4; ii++) {
+					int digit = Character.digit(readChar(), 16);
+					if (digit < 0) {
+						return -1;
+					}
+					value = (value << 4) + digit;
 				}
+				return value;
+			case -1:
+				return -1;
+			default:
+				return -2;
 			}
-			
-			return JSONToken.JsUnknown;
 		}
 		
-		private JSONToken consumeNull()
+		// match the remainder of true, false or null
+		private JSONToken consumeLiteral(String rest, JSONToken type, Object value) throws JSONParseException
 		{
-			// we've already consumed the first char and it is an n
-			if (_json.length() >= _index+3 && _json.substring(_index-1, _index+3).equals("null")) {
-				_value = null;
-				_index += 3;
-				return JSONToken.JsNull;
+			// we've already consumed the first char
+			for (int ii=0; ii<rest.length(); ii++) {
+				if (readChar() != rest.charAt(ii)) {
+					return JSONToken.JsUnknown;
+				}
 			}
-			
-			return JSONToken.JsUnknown;
+			_value = value;
+			return type;
 		}
 		
-		private JSONToken consumeNumber()
+		private JSONToken consumeNumber(char first) throws JSONParseException
 		{
 			// we will be called after the beginning character has been passed (and checked legal)
-			// just supporting integers and non-exponent doubles now
-			int sign = 1;
+			// the digits are accumulated into a long as we go, and only in unusual cases
+			// (more than 18 significant digits, or a double we can't compute exactly) do we fall
+			// back to building a string from the chars we keep in _text
+			boolean negative = (first == '-');
+			long mantissa = 0;
+			int mantissaDigits = 0;  // significant digits in mantissa
+			boolean exact = true;  // false if there were more digits than fit in mantissa
+			int digitCount = 0;
+			int scale = 0;  // digits of mantissa after the decimal point
 			boolean haveDecimal = false;
-			int start = _index;
-			if (_json.charAt(_index-1) == '-') {
-				sign = -1;
-			}
-			else {
-				// back up to get first numeric
-				start = _index - 1;
+			boolean haveExponent = false;
+			boolean expSignAllowed = false;
+			boolean expNegative = false;
+			int exponent = 0;
+			int expDigits = 0;
+			
+			_textLength = 0;
+			appendText(first);
+			if (!negative) {
+				mantissa = first - '0';
+				mantissaDigits = (mantissa != 0) ? 1 : 0;
+				digitCount = 1;
 			}
-			while (_index < _json.length()) {
-				char cc = _json.charAt(_index++);
-				if (cc == '.' && !haveDecimal) {
+			while (true) {
+				int cc = peekChar();
+				if (cc >= '0' && cc <= '9') {
+					int digit = cc - '0';
+					if (haveExponent) {
+						if (exponent < 100000) {
+							exponent = exponent * 10 + digit;
+						}
+						expDigits++;
+					}
+					else {
+						digitCount++;
+						if (mantissaDigits < 18) {
+							mantissa = mantissa * 10 + digit;
+							if (mantissa != 0) {
+								mantissaDigits++;
+							}
+							if (haveDecimal) {
+								scale++;
+							}
+						}
+						else {
+							exact = false;
+						}
+					}
+					expSignAllowed = false;
+				}
+				else if (cc == '.' && !haveDecimal && !haveExponent) {
 				    // we can have one decimal point, no more
-				    haveDecimal = true;
+					haveDecimal = true;
+				}
+				else if ((cc == 'e' || cc == 'E') && !haveExponent && digitCount > 0) {
+					haveExponent = true;
+					expSignAllowed = true;
 				}
-				else if (cc < '0' || cc > '9') {
-					_index--;
+				else if ((cc == '-' || cc == '+') && expSignAllowed) {
+					expNegative = (cc == '-');
+					expSignAllowed = false;
+				}
+				else {
 					break;
 				}
+				appendText((char)cc);
+				_pos++;
 			}
-			if (start == _index) {
-				// bare negative sign
+			if (digitCount == 0 || (haveExponent && expDigits == 0)) {
+				// bare negative sign, or missing exponent
 				return JSONToken.JsUnknown;
 			}
-			String numberString = _json.substring(start, _index);
-			JSONToken type;
-			if (!haveDecimal) {
-			    _value = sign * Integer.parseInt(numberString);
-			    type = JSONToken.JsInt;
+			JSONToken type = (haveDecimal || haveExponent) ? JSONToken.JsDouble : JSONToken.JsInt;
+			if (_rawStrings) {
+				// nobody is going to look at the value
+				return type;
+			}
+			
+			if (type == JSONToken.JsInt) {
+				if (exact) {
+					long value = negative ? -mantissa : mantissa;
+					_numberKind = (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) ? NumInt : NumLong;
+					_longValue = value;
+				}
+				else {
+					// too many digits for our accumulation, but it may still fit in a long
+					setBigValue(new BigDecimal(_text, 0, _textLength));
+				}
 			}
 			else {
-			    _value = sign * Double.parseDouble(numberString);
-			    type = JSONToken.JsDouble;
+				int exp10 = (expNegative ? -exponent : exponent) - scale;
+				if (exact && mantissa <= MaxExactMantissa && exp10 >= -MaxExactPower && exp10 <= MaxExactPower) {
+					// both the mantissa and the power of ten are exact doubles, so one operation is correctly rounded
+					double value = (exp10 >= 0) ? mantissa * PowersOfTen[exp10] : mantissa / PowersOfTen[-exp10];
+					_doubleValue = negative ? -value : value;
+				}
+				else {
+					_doubleValue = Double.parseDouble(new String(_text, 0, _textLength));
+				}
+				_numberKind = NumDouble;
 			}
+			_boxPending = true;
 			
 			return type;
 		}
+		
+		private void setBigValue(BigDecimal value)
+		{
+			try {
+				_longValue = value.longValueExact();
+				_numberKind = NumLong;
+			}
+			catch (ArithmeticException exc) {
+				_bigValue = value;
+				_numberKind = NumBig;
+			}
+		}
+		
+		// box the current number - only done when someone asks for it as an Object
+		private Object boxNumber()
+		{
+			switch (_numberKind) {
+			case NumInt:
+				int ival = (int)_longValue;
+				return (ival >= 0 && ival < SmallInts.length) ? SmallInts[ival] : Integer.valueOf(ival);
+			case NumLong:
+				return Long.valueOf(_longValue);
+			case NumDouble:
+				return Double.valueOf(_doubleValue);
+			default:
+				return _bigValue;
+			}
+		}
+		
+		// for JsInt tokens: whether the value fits in an int or a long
+		public boolean isInt()
+		{
+			return _numberKind == NumInt;
+		}
+		
+		public boolean isLong()
+		{
+			return _numberKind == NumInt || _numberKind == NumLong;
+		}
+		
+		// the current number without boxing (only valid if isLong)
+		public long getLongValue()
+		{
+			return _longValue;
+		}
+		
+		// the current number as a double, without boxing
+		public double getDoubleValue()
+		{
+			switch (_numberKind) {
+			case NumInt:
+			case NumLong:
+				return _longValue;
+			case NumDouble:
+				return _doubleValue;
+			default:
+				return _bigValue.doubleValue();
+			}
+		}
 	}
 	
 	// JSONReadable needs a post-read method to handle version upgrade
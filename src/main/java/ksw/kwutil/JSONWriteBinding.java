@@ -0,0 +1,166 @@
+package ksw.kwutil;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import ksw.kwutil.JSONWriter.JSONWriteException;
+
+// the getters JSONWriter uses to write a JSONWriteableByGet, worked out once per class
+// (including the ones that aren't there) and called through MethodHandles rather than Method.invoke
+class JSONWriteBinding
+{
+    private static final ClassValue<JSONWriteBinding> _bindings = new ClassValue<JSONWriteBinding>() {
+        @Override
+        protected JSONWriteBinding computeValue(Class<?> type)
+        {
+            return new JSONWriteBinding(type);
+        }
+    };
+    
+    private static final MethodType GetterType = MethodType.methodType(Object.class, Object.class);
+    
+    private final Class _class;
+    private final ConcurrentMap<String, Getter> _getters;  // filled in as fields are asked for
+    
+    // the getters for the last list of field names we were asked about
+    // writeables generally hand back the same (static) array every time, so this saves the map lookups
+    private volatile FieldList _lastFields;
+    
+    public static JSONWriteBinding forClass(Class objectClass)
+    {
+        return _bindings.get(objectClass);
+    }
+    
+    private JSONWriteBinding(Class objectClass)
+    {
+        _class = objectClass;
+        _getters = new ConcurrentHashMap<String, Getter>(16);
+        _lastFields = null;
+    }
+    
+    // the getters for the fields, in order
+    public Getter[] getGetters(String[] fieldNames)
+    {
+        FieldList last = _lastFields;
+        if (last != null && last._names == fieldNames) {
+            return last._getters;
+        }
+        Getter[] getters = new Getter[fieldNames.length];
+        for (int ii=0; ii<fieldNames.length; ii++) {
+            getters[ii] = getGetter(fieldNames[ii]);
+        }
+        _lastFields = new FieldList(fieldNames, getters);
+        return getters;
+    }
+    
+    public Getter getGetter(String fieldName)
+    {
+        Getter result = _getters.get(fieldName);
+        if (result == null) {
+            result = new Getter(_class, fieldName, findGetter(fieldName));
+            _getters.putIfAbsent(fieldName, result);
+        }
+        return result;
+    }
+    
+    // try for an internal get ("_get") first, otherwise the usual "get"
+    private Method findGetter(String fieldName)
+    {
+        try {
+            return _class.getMethod(StringUtil.upperFirst("_get", fieldName), (Class[])null);
+        }
+        catch (NoSuchMethodException exc) {
+            try {
+                return _class.getMethod(StringUtil.upperFirst("get", fieldName), (Class[])null);
+            }
+            catch (NoSuchMethodException exc2) {
+                return null;
+            }
+        }
+    }
+    
+    private static class FieldList
+    {
+        private final String[] _names;
+        private final Getter[] _getters;
+        
+        private FieldList(String[] names, Getter[] getters)
+        {
+            _names = names;
+            _getters = getters;
+        }
+    }
+    
+    public static class Getter
+    {
+        private final String _className;
+        private final String _fieldName;
+        private final Class _type;  // null if there's no getter
+        private final MethodHandle _handle;  // (Object)Object
+        private final Exception _handleException;  // why we don't have a handle
+        
+        private Getter(Class objectClass, String fieldName, Method method)
+        {
+            _className = objectClass.getSimpleName();
+            _fieldName = fieldName;
+            MethodHandle handle = null;
+            Exception handleException = null;
+            if (method != null) {
+                _type = method.getReturnType();
+                try {
+                    try {
+                        // so that public getters of non-public classes work
+                        method.setAccessible(true);
+                    }
+                    catch (RuntimeException exc) {
+                        // leave the normal access checks in place
+                    }
+                    handle = MethodHandles.lookup().unreflect(method).asType(GetterType);
+                }
+                catch (IllegalAccessException exc) {
+                    handleException = exc;
+                }
+            }
+            else {
+                _type = null;
+            }
+            _handle = handle;
+            _handleException = handleException;
+        }
+        
+        public String getFieldName()
+        {
+            return _fieldName;
+        }
+        
+        public Class getType()
+        {
+            return _type;
+        }
+        
+        public Object get(Object writeObject) throws JSONWriteException
+        {
+            if (_type == null) {
+                throw new JSONWriteException("unknown method " + _fieldName + " when writing class " + _className);
+            }
+            Throwable exc = _handleException;
+            if (exc == null) {
+                try {
+                    return (Object)_handle.invokeExact(writeObject);
+                }
+                // an Error (out of memory, say) isn't the class's fault, so let it through
+                catch (Error e) {
+                    throw e;
+                }
+                catch (Throwable e) {
+                    exc = e;
+                }
+            }
+            throw new JSONWriteException("cannot call get method for " + _fieldName + " when writing class " + _className + " " + exc);
+        }
+    }
+}
@@ -1,17 +1,45 @@
 package ksw.kwutil;
 
+import java.io.IOException;
+import java.io.Writer;
 import java.lang.reflect.Array;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
+import java.util.Arrays;
 import java.util.List;
 
 /**
  * Class for writing a JSON string
+ * By default the JSON is accumulated in memory (see toString).
+ * Given a Writer, the JSON is written out as it goes, through a buffer of fixed size.
  */
 public class JSONWriter
 {
-    private StringBuffer _out;
+    private static final int StreamBufferSize = 8192;
+    
+    private char[] _out;
+    private int _length;
     private boolean _atStart;
+    private boolean _utf8;  // don't escape non-ASCII chars
+    
+    private static final char[] HexDigits = "0123456789abcdef".toCharArray();
+    // how to write each ASCII char in a string, null for as it is
+    private static final String[] AsciiEscapes = new String[0x80];
+    static {
+        for (int ii=0; ii<0x20; ii++) {
+            AsciiEscapes[ii] = "\\u00" + HexDigits[ii >> 4] + HexDigits[ii & 0xf];
+        }
+        AsciiEscapes['"'] = "\\\"";
+        AsciiEscapes['\\'] = "\\\\";
+        AsciiEscapes['/'] = "\\/";
+        AsciiEscapes['\b'] = "\\b";
+        AsciiEscapes['\f'] = "\\f";
+        AsciiEscapes['\n'] = "\\n";
+        AsciiEscapes['\r'] = "\\r";
+        AsciiEscapes['\t'] = "\\t";
+    }
+    
+    // when streaming, where the output goes, and the first problem we had writing to it
+    private Writer _sink;
+    private IOException _error;
 
     // testing routine
     public static void main(String[] args)
@@ -84,7 +112,39 @@ public class JSONWriter
 
     public JSONWriter()
     {
-        _out = new StringBuffer();
+        _out = new char[256];
+        _length = 0;
+        _atStart = true;
+        _sink = null;
+        _error = null;
+        _utf8 = false;
+    }
+    
+    // write the JSON to the writer as it's generated
+    // call flush at the end to push out the last of it
+    // the writer is not closed
+    public JSONWriter(Writer sink)
+    {
+        _out = new char[StreamBufferSize];
+        _length = 0;
+        _atStart = true;
+        _sink = sink;
+        _error = null;
+        _utf8 = false;
+    }
+    
+    // write non-ASCII chars as they are, rather than escaping them
+    // only for output that will be encoded as UTF-8 (or some other unicode encoding)
+    public void setUtf8Output(boolean utf8)
+    {
+        _utf8 = utf8;
+    }
+    
+    // start an item within an object, the value for which is added next
+    // (with startObject, startArray or an addItem with a null tag)
+    public void addTag(String tag)
+    {
+        beginItem(tag);
         _atStart = true;
     }
 
@@ -103,21 +163,21 @@ public class JSONWriter
     private void startObject(String tag)
     {
         if (!_atStart) {
-            _out.append(',');
+            append(',');
         }
         if (tag != null) {
 	        addStringData(tag);
-	        _out.append(": {");
+	        append(": {");
         }
         else {
-            _out.append('{');
+            append('{');
         }
         _atStart = true;
     }
 
     public void endObject()
     {
-        _out.append('}');
+        append('}');
         _atStart = false;
     }
 
@@ -136,21 +196,21 @@ public class JSONWriter
     private void startArray(String tag)
     {
         if (!_atStart) {
-            _out.append(',');
+            append(',');
         }
         if (tag != null) {
 	        addStringData(tag);
-	        _out.append(": [");
+	        append(": [");
         }
         else {
-            _out.append('[');
+            append('[');
         }
         _atStart = true;
     }
 
     public void endArray()
     {
-        _out.append(']');
+        append(']');
         _atStart = false;
     }
 
@@ -165,10 +225,10 @@ public class JSONWriter
     {
     	beginItem(tag);
     	if (value == null) {
-            _out.append("null");
+            append("null");
     	}
     	else {
-	        _out.append(Integer.toString(value));
+	        append(Integer.toString(value));
     	}
         _atStart = false;
     }
@@ -177,10 +237,10 @@ public class JSONWriter
     {
         beginItem(tag);
         if (value == null) {
-            _out.append("null");
+            append("null");
         }
         else {
-            _out.append(Double.toString(value));
+            append(Double.toString(value));
         }
         _atStart = false;
     }
@@ -189,10 +249,10 @@ public class JSONWriter
     {
     	beginItem(tag);
     	if (value == null) {
-            _out.append("null");
+            append("null");
     	}
     	else {
-	        _out.append(Short.toString(value));
+	        append(Short.toString(value));
     	}
         _atStart = false;
     }
@@ -201,10 +261,10 @@ public class JSONWriter
     {
     	beginItem(tag);
     	if (value == null) {
-            _out.append("null");
+            append("null");
     	}
     	else {
-	        _out.append(Long.toString(value));
+	        append(Long.toString(value));
     	}
         _atStart = false;
     }
@@ -213,10 +273,10 @@ public class JSONWriter
     {
     	beginItem(tag);
     	if (value == null) {
-            _out.append("null");
+            append("null");
     	}
     	else {
-	        _out.append(Boolean.toString(value));
+	        append(Boolean.toString(value));
     	}
         _atStart = false;
     }
@@ -226,7 +286,7 @@ public class JSONWriter
     public void addItem(String tag, JSONWriter jwriter)
     {
         beginItem(tag);
-        _out.append(jwriter.toString());
+        append(jwriter._out, 0, jwriter._length);
         _atStart = false;
     }
     
@@ -250,40 +310,11 @@ public class JSONWriter
     	if (fieldNames == null) {
     		throw new JSONWriteException("no field names when writing class " + wClass.getSimpleName());
     	}
-    	for (String field : fieldNames) {
-    		// try to get internal get ("_get") first, otherwise get the usual "get"
-    		String methodName = StringUtil.upperFirst("_get", field);
-    		Method method = null;
-    		try {
-	    		method = wClass.getMethod(methodName, (Class[])null);
-    		}
-        	catch(NoSuchMethodException exc) {
-        		methodName = StringUtil.upperFirst("get", field);
-        		try {
-    	    		method = wClass.getMethod(methodName, (Class[])null);
-        		}
-        		catch (NoSuchMethodException exc2) {
-	        		throw new JSONWriteException("unknown method " + field + " when writing class " + wClass.getSimpleName());
-        		}
-        	}
-        	
-        	Object value = null;
-        	Exception exc = null;
-			try {
-				Class fieldType = method.getReturnType();
-				value = method.invoke(writeObject);
-				addWriteableValue(wClass.getSimpleName(), field, fieldType, value);
-			} catch (IllegalArgumentException e) {
-				exc = e;
-			} catch (IllegalAccessException e) {
-				exc = e;
-			} catch (InvocationTargetException e) {
-				exc = e;
-			}
-			
-			if (exc != null) {
-        		throw new JSONWriteException("cannot call get method for " + field + " when writing class " + wClass.getSimpleName() + " " + exc);
-			}
+    	// the getters are looked up once per class (see JSONWriteBinding)
+    	JSONWriteBinding.Getter[] getters = JSONWriteBinding.forClass(wClass).getGetters(fieldNames);
+    	for (JSONWriteBinding.Getter getter : getters) {
+    		Object value = getter.get(writeObject);
+    		addWriteableValue(wClass.getSimpleName(), getter.getFieldName(), getter.getType(), value);
     	}
     	endObject();
     }
@@ -370,71 +401,193 @@ public class JSONWriter
     private void beginItem(String tag)
     {
         if (!_atStart) {
-            _out.append(',');
+            append(',');
         }
         if (tag != null) {
             addStringData(tag);
-            _out.append(": ");
+            append(": ");
         }
     }
     
     public void reset()
     {
-        _out = new StringBuffer();
+        _length = 0;
         _atStart = false;
     }
 
+    // the JSON so far
+    // NOTE! when streaming, this is only what hasn't yet been written out
     public String toString()
     {
-        return _out.toString();
+        return new String(_out, 0, _length);
     }
-
-    private void addStringData(String value)
+    
+    // copy the JSON to a writer, without making a String of it
+    public void writeTo(Writer writer) throws IOException
     {
-        if (value != null) {
-            _out.append('"');
-            int slen = value.length();
-            for (int ii=0; ii<slen; ii++) {
-                char cc = value.charAt(ii);
-                int ic = (int)cc;
-                if (cc == '"') {
-                    _out.append('\\');
-                    _out.append(cc);
-                }
-                else if (cc == '\\') {
-                    _out.append("\\\\");
-                }
-                else if (cc == '/') {
-                    _out.append("\\/");
-                }
-                else if (cc == '\b') {
-                    _out.append("\\b");
-                }
-                else if (cc == '\f') {
-                    _out.append("\\f");
-                }
-                else if (cc == '\n') {
-                    _out.append("\\n");
+        writer.write(_out, 0, _length);
+    }
+    
+    // when streaming, write out everything we have, and flush the writer
+    public void flush()
+    {
+        if (_sink != null) {
+            drain();
+            if (_error == null) {
+                try {
+                    _sink.flush();
                 }
-                else if (cc == '\r') {
-                    _out.append("\\r");
+                catch (IOException exc) {
+                    _error = exc;
                 }
-                else if (cc == '\t') {
-                    _out.append("\\t");
+            }
+        }
+    }
+    
+    // true if there was a problem writing to the stream (like PrintWriter.checkError)
+    // once that happens, the rest of the output is dropped
+    // a PrintWriter sink never throws, so this never sees its errors - ask the PrintWriter instead
+    public boolean checkError()
+    {
+        return _error != null;
+    }
+    
+    public IOException getError()
+    {
+        return _error;
+    }
+    
+    private void drain()
+    {
+        if (_length > 0 && _error == null) {
+            try {
+                _sink.write(_out, 0, _length);
+            }
+            catch (IOException exc) {
+                _error = exc;
+            }
+        }
+        _length = 0;
+    }
+    
+    // make room for count more chars - by writing out what we have when streaming, or by growing
+    private void ensureRoom(int count)
+    {
+        if (_length + count <= _out.length) {
+            return;
+        }
+        if (_sink != null) {
+            drain();
+        }
+        if (count > _out.length - _length) {
+            int size = _out.length * 2;
+            while (size < _length + count) {
+                size *= 2;
+            }
+            _out = Arrays.copyOf(_out, size);
+        }
+    }
+    
+    private void append(char cc)
+    {
+        if (_length == _out.length) {
+            ensureRoom(1);
+        }
+        _out[_length++] = cc;
+    }
+    
+    private void append(String value)
+    {
+        append(value, 0, value.length());
+    }
+    
+    // append the chars of value from start up to end
+    private void append(String value, int start, int end)
+    {
+        int count = end - start;
+        if (_sink != null && count > _out.length) {
+            // too big for the buffer, write it in pieces
+            while (start < end) {
+                int piece = Math.min(end - start, _out.length);
+                ensureRoom(piece);
+                value.getChars(start, start + piece, _out, _length);
+                _length += piece;
+                start += piece;
+            }
+            return;
+        }
+        ensureRoom(count);
+        value.getChars(start, end, _out, _length);
+        _length += count;
+    }
+    
+    private void append(char[] chars, int start, int count)
+    {
+        if (_sink != null && count > _out.length) {
+            drain();
+            if (_error == null) {
+                try {
+                    _sink.write(chars, start, count);
                 }
-                else if (ic > 0x7f) {
-                    _out.append("\\u");
-                    _out.append(String.format("%04x", ic));
+                catch (IOException exc) {
+                    _error = exc;
                 }
-                else {
-                    _out.append(cc);
+            }
+            return;
+        }
+        ensureRoom(count);
+        System.arraycopy(chars, start, _out, _length, count);
+        _length += count;
+    }
+
+    private void addStringData(String value)
+    {
+        if (value == null) {
+            append("null");
+            return;
+        }
+        append('"');
+        // copy runs of chars that don't need escaping in one go
+        int slen = value.length();
+        int runStart = 0;
+        for (int ii=0; ii<slen; ii++) {
+            char cc = value.charAt(ii);
+            String escape = null;
+            if (cc < 0x80) {
+                escape = AsciiEscapes[cc];
+                if (escape == null) {
+                    continue;
                 }
             }
-            _out.append('"');
+            else if (_utf8) {
+                continue;
+            }
+            if (ii > runStart) {
+                append(value, runStart, ii);
+            }
+            if (escape != null) {
+                append(escape);
+            }
+            else {
+                appendUnicodeEscape(cc);
+            }
+            runStart = ii + 1;
         }
-        else {
-            _out.append("null");
+        if (runStart < slen) {
+            append(value, runStart, slen);
         }
+        append('"');
+    }
+    
+    private void appendUnicodeEscape(char cc)
+    {
+        ensureRoom(6);
+        _out[_length++] = '\\';
+        _out[_length++] = 'u';
+        _out[_length++] = HexDigits[(cc >> 12) & 0xf];
+        _out[_length++] = HexDigits[(cc >> 8) & 0xf];
+        _out[_length++] = HexDigits[(cc >> 4) & 0xf];
+        _out[_length++] = HexDigits[cc & 0xf];
     }
     
 	public static class JSONWriteException extends Exception
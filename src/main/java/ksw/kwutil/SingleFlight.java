@@ -0,0 +1,81 @@
+package ksw.kwutil;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+// makes sure there's only one load going for a key at a time - threads that ask for a key that's already
+// being loaded wait for that load and get the same result, instead of each doing it again
+// (for an expensive upstream fetch that a burst of requests all miss at once)
+// the load runs on the first caller's thread, and the key is forgotten once it's done, so the next call
+// after that loads again - put the result somewhere (a cache) inside the loader if it should be kept
+public class SingleFlight<K>
+{
+    private final ConcurrentHashMap<K, FutureTask<?>> _inFlight = new ConcurrentHashMap<K, FutureTask<?>>();
+    private final AtomicLong _loads = new AtomicLong();
+    private final AtomicLong _shared = new AtomicLong();
+
+    // the loader's result, or the result of the load for the key that's already going
+    // a load for a key should always give the same type of result
+    // returns null if interrupted while waiting, exceptions from the loader are thrown to all the callers
+    // (checked ones wrapped in a RuntimeException)
+    @SuppressWarnings("unchecked")
+    public <V> V run(K key, Callable<V> loader)
+    {
+        FutureTask<V> task = new FutureTask<V>(loader);
+        FutureTask<V> existing = (FutureTask<V>)_inFlight.putIfAbsent(key, task);
+        if (existing != null) {
+            _shared.incrementAndGet();
+            return getResult(existing);
+        }
+        _loads.incrementAndGet();
+        try {
+            task.run();
+        }
+        finally {
+            _inFlight.remove(key, task);
+        }
+        return getResult(task);
+    }
+
+    private static <V> V getResult(FutureTask<V> task)
+    {
+        try {
+            return task.get();
+        }
+        catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        catch (ExecutionException exc) {
+            Throwable cause = exc.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error)cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    // loads actually done
+    public long getLoads()
+    {
+        return _loads.get();
+    }
+
+    // calls that got the result of someone else's load
+    public long getShared()
+    {
+        return _shared.get();
+    }
+
+    @Override
+    public String toString()
+    {
+        return _loads.get() + " loads, " + _shared.get() + " shared";
+    }
+}
@@ -5,13 +5,11 @@ import ksw.kwutil.JSONWriter;
 import ksw.kwutil.JSONReader.JSONParseException;
 import ksw.servlet.AppCookie;
 
-import javax.servlet.ServletInputStream;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.Cookie;
 import java.util.Map;
 import java.util.HashMap;
-import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.io.IOException;
 import java.nio.charset.Charset;
@@ -137,7 +135,12 @@ public class AppRequest
     {
         setJSONResponse();
         PrintWriter writer = getWriter();
-        writer.print(jWriter.toString());
+        try {
+            jWriter.writeTo(writer);
+        }
+        catch (IOException exc) {
+            System.out.println("IOException writing JSON response " + exc);
+        }
         writer.close();
     }
 
@@ -151,9 +154,40 @@ public class AppRequest
     
     public void writeSuccessJSON(Object msg)
     {
-        setJSONResponse();
+        JSONWriter writer = startSuccessJSON();
+        if (msg instanceof JSONWriter) {
+            writer.addItem(null, (JSONWriter)msg);
+        }
+        else {
+            writer.addItem(null, ((msg != null) ? msg.toString() : ""));
+        }
+        endSuccessJSON(writer);
+    }
+    
+    // start a standard JSON success response, written straight to the response as it's generated
+    // add the message (an object, array or single item, with no tag) to the returned writer,
+    // then finish with endSuccessJSON
+    // the response is UTF-8, so non-ASCII text goes out as it is rather than escaped
+    public JSONWriter startSuccessJSON()
+    {
+        setResponseType("application/json; charset=UTF-8");
+        JSONWriter writer = new JSONWriter(getWriter());
+        writer.setUtf8Output(true);
+        writer.startObject();
+        writer.addItem("action", "success");
+        writer.addTag("message");
+        return writer;
+    }
+    
+    public void endSuccessJSON(JSONWriter writer)
+    {
+        writer.endObject();
+        writer.flush();
+        // the response's PrintWriter swallows IOExceptions, so ask it rather than the JSONWriter
         PrintWriter pwriter = getWriter();
-        pwriter.print(makeSuccessResponse(msg));
+        if (pwriter.checkError()) {
+            System.out.println("Error writing JSON response (client went away?)");
+        }
         pwriter.close();
     }
 
@@ -275,22 +309,11 @@ public class AppRequest
                 throw new JSONParseException("no encoding", null);
             }
             Charset cset = Charset.forName(encoding);
-            ServletInputStream instream = hreq.getInputStream();
-            InputStreamReader reader = new InputStreamReader(instream, cset);
-            char[] buffer = new char[128];
-            StringBuilder builder = new StringBuilder();
-            while(true) {
-                int nread = reader.read(buffer, 0, buffer.length);
-                if (nread < 0) {
-                    break;
-                }
-                builder.append(buffer, 0, nread);
-            }
             
-            // parse that as JSON (maybe we could modify our JSON parser to read directly from the stream...)
-            if (builder.length() > 0) {
+            // parse the body as JSON, straight from the stream
+            if (hreq.getContentLength() != 0) {
                 JSONReader jreader = new JSONReader();
-                Object jsonObj = jreader.parse(builder.toString());
+                Object jsonObj = jreader.parse(hreq.getInputStream(), cset);
                 if (jsonObj instanceof Map) {
                     return (Map)jsonObj;
                 }
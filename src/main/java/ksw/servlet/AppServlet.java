@@ -7,6 +7,8 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.ServletException;
 
+import org.eclipse.jetty.continuation.Continuation;
+import org.eclipse.jetty.continuation.ContinuationSupport;
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.handler.AbstractHandler;
 
@@ -22,7 +24,15 @@ import java.lang.reflect.Modifier;
  */
 public class AppServlet extends AbstractHandler
 {
+    // how long a request waits for an AsyncResult before it gets a 504
+    public static final long DefaultAsyncTimeout = 30000;
+    private static final String AsyncResultAttribute = "ksw.servlet.AsyncResult";
+    // seconds, sent with the 503 when an AsyncResult is refused
+    public static final int DefaultRetryAfter = 2;
+
     private Application _app;
+    private long _asyncTimeout = DefaultAsyncTimeout;
+    private int _retryAfter = DefaultRetryAfter;
     private Map<String, Class> _pageClasses;
     private Map<String, Method> _actionMethods;
     private Map<String, Class> _cookieClasses;
@@ -79,6 +89,16 @@ public class AppServlet extends AbstractHandler
         }
     }
 
+    public void setAsyncTimeout(long timeoutMs)
+    {
+        _asyncTimeout = timeoutMs;
+    }
+
+    public void setRetryAfter(int seconds)
+    {
+        _retryAfter = seconds;
+    }
+
     public void registerCookie (String name, Class cookieClass)
     {
         // the cookie class must be an AppCookie
@@ -107,6 +127,8 @@ public class AppServlet extends AbstractHandler
     public void handle(String arg0, Request arg1, HttpServletRequest arg2, HttpServletResponse arg3)
             throws IOException, ServletException
     {
+        // anything under our context is ours, even if it's a 404
+        arg1.setHandled(true);
         doRequest(arg2, arg3);
     }
     
@@ -121,6 +143,21 @@ public class AppServlet extends AbstractHandler
         // let app assign per-session data
         appRequest.setSessionData(_app.getSessionData(appRequest));
 
+        // an action that was waiting for its result, resumed (or timed out)
+        AsyncResult<?> pending = (AsyncResult<?>)request.getAttribute(AsyncResultAttribute);
+        if (pending != null) {
+            // it can finish just as we time out, so only give up on it if it hasn't
+            if (pending.abandon()) {
+                response.setStatus(504);
+                appRequest.writeFailureJSON("timed out");
+            }
+            else {
+                pending.writeTo(appRequest, _retryAfter);
+            }
+            _app.afterRequest(appRequest);
+            return;
+        }
+
         // figure out who to dispatch to
         String pagePath = request.getPathInfo();
         String[] pathPieces = pagePath.split("/");
@@ -144,7 +181,15 @@ public class AppServlet extends AbstractHandler
 	                    // dispatch to method
 	                    Object args[] = new Object[1];
 	                    args[0] = appRequest;
-	                    actionMethod.invoke(null, args);
+	                    Object result = actionMethod.invoke(null, args);
+	                    if (result instanceof AsyncResult) {
+	                        AsyncResult<?> asyncResult = (AsyncResult<?>)result;
+	                        if (suspend(request, asyncResult)) {
+	                            // it's written when the request is resumed
+	                            return;
+	                        }
+	                        asyncResult.writeTo(appRequest, _retryAfter);
+	                    }
 	                    handled = true;
 	                }
                 }
@@ -176,6 +221,32 @@ public class AppServlet extends AbstractHandler
         out.print("<html><head><title>Error</title></head><body>Unrecognized target " + targetName + "</body></html>");
     }
     
+    // suspend the request (giving back the thread) until the result is done, when it's resumed
+    // returns false if it's already done, and can be written now
+    private boolean suspend(HttpServletRequest request, AsyncResult<?> result)
+    {
+        if (result.isDone()) {
+            return false;
+        }
+        final Continuation continuation = ContinuationSupport.getContinuation(request);
+        continuation.setTimeout(_asyncTimeout);
+        continuation.suspend();
+        request.setAttribute(AsyncResultAttribute, result);
+        // this can happen before we've even returned, Jetty dispatches it again once we have
+        result.setListener(new Runnable() {
+            public void run()
+            {
+                try {
+                    continuation.resume();
+                }
+                catch (IllegalStateException exc) {
+                    // it timed out first
+                }
+            }
+        });
+        return true;
+    }
+
     public static class Application
     {
         // application returns session data, based on the request (cookies usually)
@@ -0,0 +1,114 @@
+package ksw.servlet;
+
+import java.util.concurrent.RejectedExecutionException;
+
+// the result of an action that finishes later, on some other thread (waiting on an upstream server, say)
+// an action returns one of these instead of writing its response, and AppServlet suspends the request -
+// the Jetty thread goes back to the pool until complete or fail is called
+// the request is then resumed, and write is called (on a Jetty thread) with the value to write the response
+// an action can return one that's already complete (from a cache), and it's written straight away
+// if the request times out first it's abandoned - whoever's working on it can check isAbandoned and stop
+public abstract class AsyncResult<T>
+{
+    private T _value;
+    private Exception _failure;
+    private boolean _done;
+    private boolean _abandoned;
+    private Runnable _listener;  // set by AppServlet, told when it's done
+
+    // write the response for the value - the request is the one for the resumed dispatch
+    protected abstract void write(AppRequest request, T value);
+
+    public void complete(T value)
+    {
+        done(value, null);
+    }
+
+    public void fail(Exception failure)
+    {
+        done(null, failure);
+    }
+
+    // only the first of complete or fail counts
+    private void done(T value, Exception failure)
+    {
+        Runnable listener;
+        synchronized (this) {
+            if (_done) {
+                return;
+            }
+            _done = true;
+            _value = value;
+            _failure = failure;
+            listener = _listener;
+        }
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    public synchronized boolean isDone()
+    {
+        return _done;
+    }
+
+    public synchronized T getValue()
+    {
+        return _value;
+    }
+
+    // nobody's waiting for it any more (the request timed out)
+    public synchronized boolean isAbandoned()
+    {
+        return _abandoned;
+    }
+    
+    // give up on it - complete and fail do nothing after this
+    // returns false if it's already done, and should be written after all
+    synchronized boolean abandon()
+    {
+        if (_done) {
+            return false;
+        }
+        _done = true;
+        _abandoned = true;
+        return true;
+    }
+
+    // what it failed with, or null
+    public synchronized Exception getFailure()
+    {
+        return _failure;
+    }
+
+    // run the listener when it's done (now, if it already is)
+    void setListener(Runnable listener)
+    {
+        synchronized (this) {
+            if (!_done) {
+                _listener = listener;
+                return;
+            }
+        }
+        listener.run();
+    }
+
+    // write the response for how it finished
+    // failing with a RejectedExecutionException means too busy to start on it, which gets a 503
+    void writeTo(AppRequest request, int retryAfter)
+    {
+        Exception failure = getFailure();
+        if (failure instanceof RejectedExecutionException) {
+            System.out.println("Async request refused: " + failure);
+            ServletHelp.writeUnavailable(request.getResponse(), retryAfter);
+        }
+        else if (failure != null) {
+            System.out.println("Async request failed: " + failure);
+            request.getResponse().setStatus(500);
+            request.writeFailureJSON("request failed");
+        }
+        else {
+            write(request, getValue());
+        }
+    }
+}
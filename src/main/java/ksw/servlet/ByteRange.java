@@ -0,0 +1,142 @@
+package ksw.servlet;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+
+// one range of bytes from a Range header ("bytes=0-499", "bytes=500-", "bytes=-500"), resolved against the length
+// of the content, so start and end (inclusive) are always inside it
+public class ByteRange
+{
+    // more ranges than this in one request is either a broken client or someone making us work,
+    // so we just send the whole thing
+    public static final int MaxRanges = 16;
+
+    private final long _start;
+    private final long _end;
+
+    public ByteRange(long start, long end)
+    {
+        _start = start;
+        _end = end;
+    }
+
+    public long getStart()
+    {
+        return _start;
+    }
+
+    // the last byte in the range (not one past it)
+    public long getEnd()
+    {
+        return _end;
+    }
+
+    public long getLength()
+    {
+        return _end - _start + 1;
+    }
+
+    // the value of the Content-Range header for this range
+    public String toContentRange(long contentLength)
+    {
+        return "bytes " + _start + "-" + _end + "/" + contentLength;
+    }
+
+    @Override
+    public String toString()
+    {
+        return _start + "-" + _end;
+    }
+
+    // the ranges from a Range header, for content of the given length
+    // returns null if the header should be ignored (not bytes, bad syntax, too many ranges) - send the whole content
+    // returns an empty list if none of the ranges are inside the content - that's a 416
+    public static List<ByteRange> parse(String header, long contentLength)
+    {
+        if (header == null) {
+            return null;
+        }
+        header = header.trim();
+        if (!header.regionMatches(true, 0, "bytes=", 0, 6)) {
+            return null;
+        }
+        String[] specs = header.substring(6).split(",");
+        if (specs.length > MaxRanges) {
+            return null;
+        }
+        List<ByteRange> ranges = new ArrayList<ByteRange>(specs.length);
+        for (String spec : specs) {
+            spec = spec.trim();
+            int dash = spec.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+            long first = parseNumber(spec.substring(0, dash).trim());
+            long last = parseNumber(spec.substring(dash + 1).trim());
+            if (dash == 0) {
+                // the last n bytes
+                if (last < 0) {
+                    return null;
+                }
+                if (last > 0 && contentLength > 0) {
+                    ranges.add(new ByteRange(Math.max(0, contentLength - last), contentLength - 1));
+                }
+                continue;
+            }
+            if (first < 0 || (dash < spec.length() - 1 && last < first)) {
+                return null;
+            }
+            if (first >= contentLength) {
+                // not satisfiable, but the others might be
+                continue;
+            }
+            if (last < 0 || last >= contentLength) {
+                last = contentLength - 1;
+            }
+            ranges.add(new ByteRange(first, last));
+        }
+        return ranges;
+    }
+
+    // whether a Range in the request still applies - If-Range says to only send part if the content
+    // hasn't changed since the client got the rest (otherwise it gets the whole thing)
+    // an entity tag has to match exactly (weak tags never do), a date has to be the modification time
+    public static boolean ifRangeMatches(HttpServletRequest request, String etag, long lastModified)
+    {
+        String ifRange = request.getHeader("If-Range");
+        if (ifRange == null) {
+            return true;
+        }
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return etag != null && !etag.startsWith("W/") && ifRange.equals(etag);
+        }
+        long date;
+        try {
+            date = request.getDateHeader("If-Range");
+        }
+        catch (IllegalArgumentException exc) {
+            return false;
+        }
+        return date >= 0 && lastModified / 1000 == date / 1000;
+    }
+
+    // a non-negative number, -1 for an empty string, or -2 if it isn't a number
+    private static long parseNumber(String value)
+    {
+        if (value.length() == 0) {
+            return -1;
+        }
+        long result = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char ch = value.charAt(i);
+            if (ch < '0' || ch > '9' || result > Long.MAX_VALUE / 10 - 1) {
+                return -2;
+            }
+            result = result * 10 + (ch - '0');
+        }
+        return result;
+    }
+}
@@ -5,19 +5,26 @@
 
 package ksw.servlet;
 
+import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
 import java.io.PrintWriter;
 import java.io.File;
-import java.io.BufferedInputStream;
 import java.io.FileInputStream;
-import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
 import java.util.regex.PatternSyntaxException;
 
+import org.eclipse.jetty.io.nio.DirectNIOBuffer;
+import org.eclipse.jetty.server.AbstractHttpConnection;
+
 import ksw.kwutil.FileUtil;
 
 /**
@@ -32,7 +39,7 @@ public class ServletHelp
     
     // standard cookie parameter names
     public static final String VersionParameter = "v";
-
+    
     public static Cookie getCookie (HttpServletRequest request, String name)
     {
         Cookie[] cookies = request.getCookies();
@@ -197,38 +204,281 @@ public class ServletHelp
                 System.out.println("no content type for " + readFile.getName());
             }
 
-            // set the content length
-            response.setContentLength((int)readFile.length());
+            // set the content length (setContentLength only takes an int)
+            long length = readFile.length();
+            response.setHeader("Content-Length", Long.toString(length));
 
-            int buffsize = 1024 * 62;
-            byte[] mybuff = new byte[buffsize];
-            BufferedInputStream in = new BufferedInputStream(new FileInputStream(readFile), buffsize+2);
-            BufferedOutputStream out = new BufferedOutputStream(response.getOutputStream(), buffsize+2);
-            while (true) {
-                state = "reading";
-                int nread = in.read(mybuff, 0, buffsize);
-                state = "writing";
-                if (nread > 0) {
-                    out.write(mybuff, 0, nread);
-                }
-                state = "inloop";
-                if (nread < buffsize) {
-                    break;
+            // let the file channel do the copying
+            // (no mapping it - a mapping per request isn't unmapped until it's collected, and a file truncated
+            // while it's mapped crashes the JVM - files worth holding in memory are in the StaticAssetCache)
+            ServletOutputStream out = response.getOutputStream();
+            FileInputStream in = new FileInputStream(readFile);
+            try {
+                FileChannel channel = in.getChannel();
+                WritableByteChannel outChannel = Channels.newChannel(out);
+                long position = 0;
+                while (position < length) {
+                    state = "transferring";
+                    long count = channel.transferTo(position, length - position, outChannel);
+                    if (count <= 0) {
+                        // the file got shorter?
+                        break;
+                    }
+                    position += count;
                 }
             }
+            finally {
+                in.close();
+            }
             out.flush();
-            in.close();
-
         }
         catch (Exception exc) {
         	System.out.println("(" + state + ") Exception writing file to response: " + exc);
-            response.sendError(404, "internal error");
+        	if (!response.isCommitted()) {
+        	    response.sendError(404, "internal error");
+        	}
         }
 
     }
     
+    // write the bytes (from position to limit) as the body of the response - the buffer itself isn't changed
+    // the headers, including Content-Length, should already be set
+    public static void writeBufferToResponse (ByteBuffer content, HttpServletResponse response)
+            throws IOException
+    {
+        ServletOutputStream out = response.getOutputStream();
+        if (out instanceof AbstractHttpConnection.Output) {
+            // Jetty can write a direct buffer to the socket without copying it
+            ((AbstractHttpConnection.Output)out).sendContent(new DirectNIOBuffer(content.duplicate(), true));
+        }
+        else {
+            WritableByteChannel outChannel = Channels.newChannel(out);
+            ByteBuffer toWrite = content.duplicate();
+            while (toWrite.hasRemaining()) {
+                outChannel.write(toWrite);
+            }
+            out.flush();
+        }
+    }
+    
+    // send just the ranges of the content (from ByteRange.parse), as a 206
+    // the bytes come from content when it's not null (a cached copy of the file), otherwise from the file itself,
+    // read at each range's position so nothing before it gets read
+    // one range goes as the body, several as multipart/byteranges, and none (all outside the content) is a 416
+    // validators (ETag etc.) should already be set
+    public static void writeRangesToResponse (File readFile, ByteBuffer content, long contentLength, List<ByteRange> ranges,
+                                              String mimeType, HttpServletResponse response)
+            throws IOException
+    {
+        if (ranges.isEmpty()) {
+            response.setHeader("Content-Range", "bytes */" + contentLength);
+            response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            return;
+        }
+        
+        response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        if (ranges.size() == 1) {
+            ByteRange range = ranges.get(0);
+            if (mimeType != null) {
+                response.setContentType(mimeType);
+            }
+            response.setHeader("Content-Range", range.toContentRange(contentLength));
+            response.setHeader("Content-Length", Long.toString(range.getLength()));
+            if (content != null) {
+                ByteBuffer part = content.duplicate();
+                part.position((int)range.getStart());
+                part.limit((int)range.getEnd() + 1);
+                writeBufferToResponse(part, response);
+                return;
+            }
+        }
+        
+        // the part headers, worked out first so we can give the total length
+        String boundary = null;
+        byte[][] partHeaders = null;
+        byte[] trailer = null;
+        long length = 0;
+        if (ranges.size() > 1) {
+            boundary = Long.toHexString(Double.doubleToLongBits(Math.random()));
+            partHeaders = new byte[ranges.size()][];
+            for (int i = 0; i < ranges.size(); i++) {
+                ByteRange range = ranges.get(i);
+                StringBuilder sb = new StringBuilder(100);
+                sb.append("\r\n--").append(boundary).append("\r\n");
+                if (mimeType != null) {
+                    sb.append("Content-Type: ").append(mimeType).append("\r\n");
+                }
+                sb.append("Content-Range: ").append(range.toContentRange(contentLength)).append("\r\n\r\n");
+                partHeaders[i] = sb.toString().getBytes("ISO-8859-1");
+                length += partHeaders[i].length + range.getLength();
+            }
+            trailer = ("\r\n--" + boundary + "--\r\n").getBytes("ISO-8859-1");
+            length += trailer.length;
+            response.setContentType("multipart/byteranges; boundary=" + boundary);
+            response.setHeader("Content-Length", Long.toString(length));
+        }
+        
+        ServletOutputStream out = response.getOutputStream();
+        WritableByteChannel outChannel = Channels.newChannel(out);
+        FileInputStream in = (content == null) ? new FileInputStream(readFile) : null;
+        try {
+            for (int i = 0; i < ranges.size(); i++) {
+                ByteRange range = ranges.get(i);
+                if (partHeaders != null) {
+                    out.write(partHeaders[i]);
+                }
+                if (in != null) {
+                    FileChannel channel = in.getChannel();
+                    long position = range.getStart();
+                    long end = range.getEnd() + 1;
+                    while (position < end) {
+                        long count = channel.transferTo(position, end - position, outChannel);
+                        if (count <= 0) {
+                            // the file got shorter?
+                            throw new IOException("file ended at " + position + ": " + readFile);
+                        }
+                        position += count;
+                    }
+                }
+                else {
+                    ByteBuffer part = content.duplicate();
+                    part.position((int)range.getStart());
+                    part.limit((int)range.getEnd() + 1);
+                    while (part.hasRemaining()) {
+                        outChannel.write(part);
+                    }
+                }
+            }
+            if (trailer != null) {
+                out.write(trailer);
+            }
+        }
+        finally {
+            if (in != null) {
+                in.close();
+            }
+        }
+        out.flush();
+    }
+    
+    // an empty 503, asking the client to try again in retryAfter seconds
+    // the connection is closed, keeping it would just be more work for us
+    public static void writeUnavailable (HttpServletResponse response, int retryAfter)
+    {
+        response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        response.setHeader("Retry-After", Integer.toString(retryAfter));
+        response.setHeader("Connection", "close");
+        response.setContentLength(0);
+    }
+    
+    // whether the request's Accept-Encoding allows the content coding (e.g. "gzip")
+    public static boolean acceptsEncoding (HttpServletRequest request, String coding)
+    {
+        String accept = request.getHeader("Accept-Encoding");
+        if (accept == null) {
+            return false;
+        }
+        boolean result = false;
+        for (String item : accept.split(",")) {
+            String name = item;
+            String params = null;
+            int semi = item.indexOf(';');
+            if (semi >= 0) {
+                name = item.substring(0, semi);
+                params = item.substring(semi + 1);
+            }
+            name = name.trim();
+            boolean exact = name.equalsIgnoreCase(coding);
+            if (exact || "*".equals(name)) {
+                boolean allowed = !isZeroQuality(params);
+                if (exact) {
+                    // an explicit entry beats the wildcard
+                    return allowed;
+                }
+                result = allowed;
+            }
+        }
+        return result;
+    }
+    
+    // true for a "q=0" parameter (which means "not acceptable")
+    private static boolean isZeroQuality (String params)
+    {
+        if (params == null) {
+            return false;
+        }
+        for (String param : params.split(";")) {
+            param = param.trim();
+            if (param.startsWith("q=")) {
+                try {
+                    return Double.parseDouble(param.substring(2).trim()) <= 0.0;
+                }
+                catch (NumberFormatException exc) {
+                    return false;
+                }
+            }
+        }
+        return false;
+    }
+    
+    // a strong entity tag for a version of a file, from its length and modification time
+    // coding (e.g. "gzip") is null for the file as it is - each encoded version needs its own tag
+    public static String makeETag (long length, long lastModified, String coding)
+    {
+        StringBuilder sb = new StringBuilder(32);
+        sb.append('"').append(Long.toHexString(length)).append('-').append(Long.toHexString(lastModified));
+        if (coding != null) {
+            sb.append('-').append(coding);
+        }
+        return sb.append('"').toString();
+    }
+    
+    // whether the request's conditional headers say the client's copy is still good (so we can send a 304)
+    // If-None-Match wins over If-Modified-Since when both are there
+    public static boolean isNotModified (HttpServletRequest request, String etag, long lastModified)
+    {
+        String noneMatch = request.getHeader("If-None-Match");
+        if (noneMatch != null) {
+            return etag != null && etagMatches(noneMatch, etag);
+        }
+        if (lastModified <= 0) {
+            return false;
+        }
+        long since;
+        try {
+            since = request.getDateHeader("If-Modified-Since");
+        }
+        catch (IllegalArgumentException exc) {
+            // unparseable date, ignore it
+            return false;
+        }
+        // http dates only go to the second
+        return since >= 0 && lastModified / 1000 <= since / 1000;
+    }
+    
+    // whether the etag is in the list from an If-None-Match header
+    // uses the weak comparison, so W/"x" matches "x" - only right for If-None-Match,
+    // If-Range needs the strong comparison (see ByteRange.ifRangeMatches)
+    public static boolean etagMatches (String header, String etag)
+    {
+        if (header.trim().equals("*")) {
+            return true;
+        }
+        String bare = etag.startsWith("W/") ? etag.substring(2) : etag;
+        for (String item : header.split(",")) {
+            item = item.trim();
+            if (item.startsWith("W/")) {
+                item = item.substring(2);
+            }
+            if (item.equals(bare)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
     // figure a mime type based on the file extension
-    private static String mimeFromFile(File theFile)
+    public static String mimeFromFile(File theFile)
     {
         String ext = FileUtil.getExtension(theFile, false).toLowerCase();
         if ("html".equals(ext) || "htm".equals(ext)) {
@@ -1,7 +1,12 @@
 package ksw.shopstyle;
 
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 
+import ksw.kwutil.JSONPullParser;
+import ksw.kwutil.JSONPullParser.Token;
+import ksw.kwutil.JSONReader.JSONParseException;
 import ksw.kwutil.JSONWriter;
 
 public class Product
@@ -32,6 +37,9 @@ public class Product
     private static final String LargeImageField = "largeUrl";
     private static final String InStockField = "inStock";
     
+    // the image sizes we use, in the order imageUrl, thumbUrl, largeUrl
+    private static final List<String> ImageSizes = Arrays.asList("Medium", "Small", "Original");
+    
     public static Product fromJSON(Map pj)
     {
         Integer id = (Integer)pj.get(IdField);
@@ -92,6 +100,130 @@ public class Product
         }
     }
     
+    // build a product straight from the parser, which is positioned at the start of the product object
+    // only the fields we use are read, everything else (most of the image sizes, etc) is skipped
+    public static Product fromJSON(JSONPullParser pp) throws JSONParseException
+    {
+        Integer id = null;
+        String name = null;
+        Double price = null;
+        String priceLabel = null;
+        String description = null;
+        String url = null;
+        boolean inStock = false;
+        String retailerId = null;
+        String brandId = null;
+        String[] imageUrls = new String[ImageSizes.size()];
+        
+        while (pp.nextToken() == Token.Name) {
+            String field = pp.currentName();
+            Token token = pp.nextToken();
+            if (token == Token.NullValue) {
+                continue;
+            }
+            if (IdField.equals(field)) {
+                id = pp.currentInt();
+            }
+            else if (NameField.equals(field)) {
+                name = pp.currentString();
+            }
+            else if (PriceField.equals(field)) {
+                price = pp.currentDouble();
+            }
+            else if (PriceLabelField.equals(field)) {
+                priceLabel = pp.currentString();
+            }
+            else if (DescriptionField.equals(field)) {
+                description = pp.currentString();
+            }
+            else if (UrlField.equals(field)) {
+                url = pp.currentString();
+            }
+            else if (InStockField.equals(field)) {
+                inStock = pp.currentBoolean();
+            }
+            else if ("retailer".equals(field)) {
+                retailerId = readStringField(pp, "id");
+            }
+            else if ("brand".equals(field)) {
+                brandId = readStringField(pp, "id");
+            }
+            else if ("image".equals(field)) {
+                readImageUrls(pp, imageUrls);
+            }
+            else {
+                pp.skipValue();
+            }
+        }
+        
+        if (id != null && name != null && imageUrls[0] != null) {
+            Product prod = new Product(id, name, imageUrls[0]);
+            prod._price = price;
+            prod._priceLabel = priceLabel;
+            prod._brandId = brandId;
+            prod._retailerId = retailerId;
+            prod._description = description;
+            prod._url = url;
+            prod._inStock = inStock;
+            prod._thumbUrl = imageUrls[1];
+            prod._largeUrl = imageUrls[2];
+            
+            return prod;
+        }
+        else {
+            return null;
+        }
+    }
+    
+    // pick one string field out of the object we're positioned at, skipping the rest of it
+    private static String readStringField(JSONPullParser pp, String fieldName) throws JSONParseException
+    {
+        String result = null;
+        if (pp.currentToken() != Token.StartObject) {
+            pp.skipValue();
+            return result;
+        }
+        while (pp.nextToken() == Token.Name) {
+            String field = pp.currentName();
+            pp.nextToken();
+            if (fieldName.equals(field)) {
+                result = pp.currentString();
+            }
+            else {
+                pp.skipValue();
+            }
+        }
+        return result;
+    }
+    
+    // read the urls of the image sizes we use out of the image object
+    private static void readImageUrls(JSONPullParser pp, String[] urls) throws JSONParseException
+    {
+        if (pp.currentToken() != Token.StartObject) {
+            pp.skipValue();
+            return;
+        }
+        while (pp.nextToken() == Token.Name) {
+            String field = pp.currentName();
+            Token token = pp.nextToken();
+            if ("sizes".equals(field) && token == Token.StartObject) {
+                while (pp.nextToken() == Token.Name) {
+                    int indx = ImageSizes.indexOf(pp.currentName());
+                    pp.nextToken();
+                    if (indx >= 0) {
+                        urls[indx] = readStringField(pp, "url");
+                    }
+                    else {
+                        pp.skipValue();
+                    }
+                }
+            }
+            else {
+                pp.skipValue();
+            }
+        }
+    }
+    
     private Product(Integer id, String name, String imageUrl)
     {
         _id = id;
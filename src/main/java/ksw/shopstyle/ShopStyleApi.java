@@ -4,11 +4,13 @@ import java.util.List;
 
 import ksw.kwutil.JSONWriter;
 import ksw.servlet.AppRequest;
+import ksw.servlet.AsyncResult;
 
 public class ShopStyleApi
 {
     // get products of a given color
-    public static void productsAction(AppRequest request)
+    // the request is suspended while they're fetched (unless they're cached)
+    public static AsyncResult<List<Product>> productsAction(AppRequest request)
     {
         ShopStyleData ssData = (ShopStyleData)request.getApp();
 
@@ -28,9 +30,18 @@ public class ShopStyleApi
             }
         }
 
-        List<Product> products = ssData.getProducts(category, filter);
-        
-        JSONWriter jwriter = new JSONWriter();
+        return ssData.getProductsAsync(category, filter, new AsyncResult<List<Product>>() {
+            protected void write(AppRequest request, List<Product> products)
+            {
+                writeProducts(request, products);
+            }
+        });
+    }
+    
+    // the products are written straight out to the response, rather than built up in memory first
+    private static void writeProducts(AppRequest request, List<Product> products)
+    {
+        JSONWriter jwriter = request.startSuccessJSON();
         jwriter.startArray();
         for (Product pp : products) {
             jwriter.startObject();
@@ -38,7 +49,7 @@ public class ShopStyleApi
             jwriter.endObject();
         }
         jwriter.endArray();
-        request.writeSuccessJSON(jwriter);
+        request.endSuccessJSON(jwriter);
     }
 
     // get retailers
@@ -48,7 +59,7 @@ public class ShopStyleApi
         
         List<Retailer> retailers = ssData.getRetailers();
         
-        JSONWriter jwriter = new JSONWriter();
+        JSONWriter jwriter = request.startSuccessJSON();
         jwriter.startArray();
         for (Retailer rr : retailers) {
             jwriter.startObject();
@@ -56,7 +67,7 @@ public class ShopStyleApi
             jwriter.endObject();
         }
         jwriter.endArray();
-        request.writeSuccessJSON(jwriter);
+        request.endSuccessJSON(jwriter);
     }
 
     // get brands
@@ -66,7 +77,7 @@ public class ShopStyleApi
         
         List<Brand> brands = ssData.getBrands();
         
-        JSONWriter jwriter = new JSONWriter();
+        JSONWriter jwriter = request.startSuccessJSON();
         jwriter.startArray();
         for (Brand bb : brands) {
             jwriter.startObject();
@@ -74,7 +85,7 @@ public class ShopStyleApi
             jwriter.endObject();
         }
         jwriter.endArray();
-        request.writeSuccessJSON(jwriter);
+        request.endSuccessJSON(jwriter);
     }
 
     // get colors
@@ -84,7 +95,7 @@ public class ShopStyleApi
         
         List<Color> colors = ssData.getColors();
         
-        JSONWriter jwriter = new JSONWriter();
+        JSONWriter jwriter = request.startSuccessJSON();
         jwriter.startArray();
         for (Color cc : colors) {
             jwriter.startObject();
@@ -92,7 +103,7 @@ public class ShopStyleApi
             jwriter.endObject();
         }
         jwriter.endArray();
-        request.writeSuccessJSON(jwriter);
+        request.endSuccessJSON(jwriter);
     }
 
     // get women's categories
@@ -102,7 +113,7 @@ public class ShopStyleApi
         
         List<Category> cats = ssData.getWomensCategories();
         
-        JSONWriter jwriter = new JSONWriter();
+        JSONWriter jwriter = request.startSuccessJSON();
         jwriter.startArray();
         for (Category cc : cats) {
             jwriter.startObject();
@@ -110,6 +121,6 @@ public class ShopStyleApi
             jwriter.endObject();
         }
         jwriter.endArray();
-        request.writeSuccessJSON(jwriter);
+        request.endSuccessJSON(jwriter);
     }
 }
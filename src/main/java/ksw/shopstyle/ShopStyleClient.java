@@ -0,0 +1,126 @@
+package ksw.shopstyle;
+
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.params.HttpClientParams;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+
+// the connection to the ShopStyle api - one HttpClient for everyone, with a pool of kept-alive connections,
+// so a fetch doesn't pay for a new TCP connection (and DNS lookup) each time
+// a fetch has to call releaseConnection on its method when it's done, which puts the connection back
+// the base url can be changed so a local stub can stand in for the api
+public class ShopStyleClient
+{
+    public static final String DefaultBaseUrl = "http://api.shopstyle.com/api/v2";
+    public static final String DefaultPid = "uid2004-79498-32";
+    public static final int DefaultMaxPerHost = 20;
+    public static final int DefaultConnectTimeout = 5000;  // ms
+    public static final int DefaultReadTimeout = 15000;  // ms, between bytes of the response
+    // pooled connections that haven't been used for this long get closed (the api will have dropped them)
+    private static final long MaxIdleMs = 60 * 1000;
+
+    private static ShopStyleClient _shared;
+
+    private final String _baseUrl;
+    private final String _pid;
+    private final MultiThreadedHttpConnectionManager _connections;
+    private final HttpClient _client;
+
+    // the client for the whole process, set up from the environment:
+    // SHOPSTYLE_API_URL, SHOPSTYLE_PID, SHOPSTYLE_MAX_CONNECTIONS (per host),
+    // SHOPSTYLE_CONNECT_TIMEOUT and SHOPSTYLE_READ_TIMEOUT (ms)
+    public static synchronized ShopStyleClient getShared()
+    {
+        if (_shared == null) {
+            _shared = new ShopStyleClient(getEnv("SHOPSTYLE_API_URL", DefaultBaseUrl),
+                                          getEnv("SHOPSTYLE_PID", DefaultPid),
+                                          getEnvInt("SHOPSTYLE_MAX_CONNECTIONS", DefaultMaxPerHost),
+                                          getEnvInt("SHOPSTYLE_CONNECT_TIMEOUT", DefaultConnectTimeout),
+                                          getEnvInt("SHOPSTYLE_READ_TIMEOUT", DefaultReadTimeout));
+        }
+        return _shared;
+    }
+
+    public ShopStyleClient(String baseUrl, String pid, int maxPerHost, int connectTimeout, int readTimeout)
+    {
+        _baseUrl = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+        _pid = pid;
+
+        _connections = new MultiThreadedHttpConnectionManager();
+        HttpConnectionManagerParams connectionParams = _connections.getParams();
+        connectionParams.setDefaultMaxConnectionsPerHost(maxPerHost);
+        connectionParams.setMaxTotalConnections(maxPerHost * 2);
+        connectionParams.setConnectionTimeout(connectTimeout);
+        connectionParams.setSoTimeout(readTimeout);
+        // a pooled connection the server has closed gets noticed before we send on it
+        connectionParams.setStaleCheckingEnabled(true);
+
+        HttpClientParams clientParams = new HttpClientParams();
+        clientParams.setContentCharset("UTF-8");
+        // how long to wait for a connection when they're all in use
+        clientParams.setConnectionManagerTimeout(connectTimeout);
+        _client = new HttpClient(clientParams, _connections);
+        System.out.println("ShopStyle api at " + _baseUrl + ", up to " + maxPerHost + " connections");
+    }
+
+    public HttpClient getHttpClient()
+    {
+        // the idle ones are cleared out as we go, rather than with another thread
+        _connections.closeIdleConnections(MaxIdleMs);
+        return _client;
+    }
+
+    // the url for an api call, parameters (already encoded) may be null
+    public String formatUrl(String api, String parameters)
+    {
+        if (parameters != null) {
+            return String.format("%s/%s?pid=%s&%s", _baseUrl, api, _pid, parameters);
+        }
+        else {
+            return String.format("%s/%s?pid=%s", _baseUrl, api, _pid);
+        }
+    }
+
+    public String getBaseUrl()
+    {
+        return _baseUrl;
+    }
+
+    // the most connections there'll be to the api
+    public int getMaxConnections()
+    {
+        return _connections.getParams().getDefaultMaxConnectionsPerHost();
+    }
+
+    // connections open to the api - the ones checked out right now and the idle ones
+    public int getConnectionsInPool()
+    {
+        return _connections.getConnectionsInPool();
+    }
+
+    // close all the connections - the client can't be used after this
+    public void shutdown()
+    {
+        _connections.shutdown();
+    }
+
+    private static String getEnv(String name, String defaultValue)
+    {
+        String value = System.getenv(name);
+        return (value != null && value.length() > 0) ? value : defaultValue;
+    }
+
+    private static int getEnvInt(String name, int defaultValue)
+    {
+        String value = System.getenv(name);
+        if (value != null && value.length() > 0) {
+            try {
+                return Integer.parseInt(value);
+            }
+            catch (NumberFormatException exc) {
+                System.out.println("Ignoring " + name + ", not a number: " + value);
+            }
+        }
+        return defaultValue;
+    }
+}
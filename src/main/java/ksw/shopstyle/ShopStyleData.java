@@ -1,83 +1,259 @@
 package ksw.shopstyle;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.Map;
 
-import org.apache.commons.httpclient.HttpClient;
-import org.apache.commons.httpclient.HttpConnectionManager;
 import org.apache.commons.httpclient.HttpException;
 import org.apache.commons.httpclient.HttpMethodBase;
 import org.apache.commons.httpclient.HttpStatus;
-import org.apache.commons.httpclient.SimpleHttpConnectionManager;
 import org.apache.commons.httpclient.methods.GetMethod;
-import org.apache.commons.httpclient.params.HttpClientParams;
 
+import ksw.kwutil.BoundedCache;
+import ksw.kwutil.JSONKeyTable;
+import ksw.kwutil.JSONProjection;
+import ksw.kwutil.JSONPullParser;
+import ksw.kwutil.JSONPullParser.Token;
 import ksw.kwutil.JSONReader;
 import ksw.kwutil.JSONReader.JSONParseException;
+import ksw.kwutil.SingleFlight;
 import ksw.servlet.AppServlet;
+import ksw.servlet.AsyncResult;
 
 public class ShopStyleData extends AppServlet.Application
 {
-    private List<Retailer> _retailers;
-    private List<Brand> _brands;
-    private List<Color> _colors;
-    private List<Category> _womensCategories;
+    // lists that change rarely, kept as snapshots and refreshed in the background
+    private final ReferenceData<Retailer> _retailers;
+    private final ReferenceData<Brand> _brands;
+    private final ReferenceData<Color> _colors;
+    private final ReferenceData<Category> _womensCategories;
+    private final List<ReferenceData<?>> _referenceData;
     
-    private Map<String, List<Product>> _products;  // map of lists of products keyed by filter
+    // one thread for the background refreshes
+    private final ScheduledExecutorService _refresher;
     
-    public ShopStyleData()
+    // threads that wait on the api for suspended requests, one per connection there can be
+    // with only so many fetches waiting for them - past that requests are turned away (503), not queued up
+    private final ExecutorService _upstream;
+    
+    private final ShopStyleClient _client;
+    
+    // upstream fetches in progress, by what they're fetching
+    private final SingleFlight<String> _fetches = new SingleFlight<String>();
+    
+    // lists of products keyed by category and filter, bounded by the number of products in them
+    private BoundedCache<String, List<Product>> _products;
+    
+    public static final int MaxCachedProducts = 5000;
+    public static final long ProductsTtlMs = 10 * 60 * 1000;
+    public static final int MaxQueuedFetches = 100;
+    // reference data that isn't loaded is tried again at most this often
+    private static final long MinRetryMs = 10 * 1000;
+    
+    // turns the body of a response into our data
+    private interface ResponseParser
     {
-        _retailers = null;
-        _brands = null;
-        _colors = null;
-        _products = new HashMap<String, List<Product>>(100);
+        public Object parse(Reader body) throws JSONParseException;
     }
     
-    public List<Retailer> getRetailers()
+    // reads just the projected parts of the body into maps and lists
+    private static class ProjectedParser implements ResponseParser
     {
-        if (_retailers == null) {
-            // blocking!!
-            fetchRetailers();
+        private JSONProjection _projection;
+        
+        public ProjectedParser(String... paths)
+        {
+            _projection = new JSONProjection(paths);
         }
         
-        // should return immutable version!
-        return _retailers;
+        public Object parse(Reader body) throws JSONParseException
+        {
+            // the maps are only read, so they can be the small read-only kind
+            JSONReader jr = new JSONReader();
+            jr.setKeyTable(JSONKeyTable.getShared());
+            jr.setCompactObjects(true);
+            return jr.parse(body, _projection);
+        }
     }
     
-    public List<Brand> getBrands()
-    {
-        if (_brands == null) {
-            // blocking!!
-            fetchBrands();
+    // we only use the id and name of the reference data
+    private static final ResponseParser RetailersParser = new ProjectedParser("retailers[].id", "retailers[].name");
+    private static final ResponseParser BrandsParser = new ProjectedParser("brands[].id", "brands[].name");
+    private static final ResponseParser ColorsParser = new ProjectedParser("colors[].id", "colors[].name");
+    private static final ResponseParser CategoriesParser = new ProjectedParser("categories[].id", "categories[].name");
+    
+    // builds the products directly from the body
+    private static final ResponseParser ProductsParser = new ResponseParser() {
+        public Object parse(Reader body) throws JSONParseException
+        {
+            // the same few dozen field names come round for every product
+            JSONPullParser pp = new JSONPullParser(body);
+            pp.setKeyTable(JSONKeyTable.getShared());
+            return readProducts(pp);
         }
+    };
+    
+    public ShopStyleData()
+    {
+        this(ShopStyleClient.getShared());
+    }
+    
+    public ShopStyleData(ShopStyleClient client)
+    {
+        _client = client;
+        _retailers = new ReferenceData<Retailer>("retailers") {
+            protected List<Retailer> fetch()
+            {
+                return fetchRetailers();
+            }
+        };
+        _brands = new ReferenceData<Brand>("brands") {
+            protected List<Brand> fetch()
+            {
+                return fetchBrands();
+            }
+        };
+        _colors = new ReferenceData<Color>("colors") {
+            protected List<Color> fetch()
+            {
+                return fetchColors();
+            }
+        };
+        _womensCategories = new ReferenceData<Category>("womensCategories") {
+            protected List<Category> fetch()
+            {
+                return fetchWomensCategories();
+            }
+        };
+        _referenceData = new ArrayList<ReferenceData<?>>();
+        _referenceData.add(_retailers);
+        _referenceData.add(_brands);
+        _referenceData.add(_colors);
+        _referenceData.add(_womensCategories);
+        _refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "shopstyle-refresh");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        
+        int fetchThreads = client.getMaxConnections();
+        _upstream = new ThreadPoolExecutor(fetchThreads, fetchThreads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(MaxQueuedFetches), new ThreadFactory() {
+            private AtomicInteger _count = new AtomicInteger();
+            
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "shopstyle-fetch-" + _count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
         
-        // should return immutable version!
-        return _brands;
+        _products = new BoundedCache<String, List<Product>>(MaxCachedProducts, ProductsTtlMs,
+                new BoundedCache.Weigher<String, List<Product>>() {
+                    public int weigh(String key, List<Product> products)
+                    {
+                        // an empty list still takes a slot
+                        return products.size() + 1;
+                    }
+                });
+    }
+    
+    public BoundedCache<String, List<Product>> getProductCache()
+    {
+        return _products;
+    }
+    
+    // these never wait for a fetch - until a list has been loaded they give an empty one
+    public List<Retailer> getRetailers()
+    {
+        return _retailers.get();
+    }
+    
+    public List<Brand> getBrands()
+    {
+        return _brands.get();
     }
     
     public List<Color> getColors()
     {
-        if (_colors == null) {
-            // blocking!!
-            fetchColors();
-        }
-        
-        // should return immutable version!
-        return _colors;
+        return _colors.get();
     }
     
     public List<Category> getWomensCategories()
     {
-        if (_womensCategories == null) {
-            // blocking!!
-            fetchWomensCategories();
+        return _womensCategories.get();
+    }
+    
+    public String[] getReferenceNames()
+    {
+        return new String[] {
+            _retailers.getName(), _brands.getName(), _colors.getName(), _womensCategories.getName()
+        };
+    }
+    
+    // fetch the named list now (waiting for it), returns whether it worked
+    // if it didn't, the previous list (if any) stays
+    public boolean refreshReference(String name)
+    {
+        for (ReferenceData<?> data : _referenceData) {
+            if (data.getName().equals(name)) {
+                return data.refresh();
+            }
         }
-        
-        // should return immutable version!
-        return _womensCategories;
+        throw new IllegalArgumentException("no reference data called " + name);
+    }
+    
+    // refresh all the reference lists, one after another
+    public void refreshAllReferences()
+    {
+        for (ReferenceData<?> data : _referenceData) {
+            data.refresh();
+        }
+    }
+    
+    // refresh the reference lists in the background every intervalMs (the first time after intervalMs -
+    // loading them at startup is up to the caller, see refreshReference)
+    public void startRefreshing(long intervalMs)
+    {
+        _refresher.scheduleWithFixedDelay(new Runnable() {
+            public void run()
+            {
+                refreshAllReferences();
+            }
+        }, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+    
+    public void stopRefreshing()
+    {
+        _refresher.shutdownNow();
+    }
+    
+    // stop the background refreshes and the upstream threads (fetches already going finish)
+    public void shutdown()
+    {
+        stopRefreshing();
+        _upstream.shutdown();
     }
     
     // we always go to SS server to get products
@@ -85,22 +261,85 @@ public class ShopStyleData extends AppServlet.Application
     {
         List<Product> result = _products.get(category+filter);
         if (result == null) {
-            result = fetchProducts(category, filter);
-            if (_products.size() >= 100) {
-                // pssht - should use an LRU
-                _products.clear();
-            }
-            _products.put(category+filter, result);
+            result = loadProducts(category, filter);
         }
         
         return result;
     }
     
+    // fetch the products into the cache
+    private List<Product> loadProducts(final String category, final String filter)
+    {
+        final String key = category+filter;
+        // everyone missing the same key at once shares one fetch
+        // it goes into the cache before the next lot can miss
+        List<Product> result = _fetches.run("products:" + key, new Callable<List<Product>>() {
+            public List<Product> call()
+            {
+                // we may have missed just before a fetch finished, and started this one just after
+                List<Product> cached = _products.get(key);
+                if (cached != null) {
+                    return cached;
+                }
+                List<Product> fetched = fetchProducts(category, filter);
+                if (fetched != null) {
+                    // shared between requests from now on
+                    fetched = Collections.unmodifiableList(fetched);
+                    _products.put(key, fetched);
+                }
+                return fetched;
+            }
+        });
+        if (result == null) {
+            // don't remember failures
+            return new ArrayList<Product>(0);
+        }
+        return result;
+    }
+    
+    // completes the result with the products - straight away if they're cached, otherwise once they've
+    // been fetched, on one of the upstream threads (so the request thread doesn't wait for the api)
+    public AsyncResult<List<Product>> getProductsAsync(final String category, final String filter,
+                                                       final AsyncResult<List<Product>> result)
+    {
+        List<Product> cached = _products.get(category+filter);
+        if (cached != null) {
+            result.complete(cached);
+            return result;
+        }
+        try {
+            _upstream.execute(new Runnable() {
+                public void run()
+                {
+                    if (result.isAbandoned()) {
+                        // the request timed out while this was queued - don't tie up a connection for nobody
+                        return;
+                    }
+                    try {
+                        result.complete(loadProducts(category, filter));
+                    }
+                    catch (RuntimeException exc) {
+                        result.fail(exc);
+                    }
+                }
+            });
+        }
+        catch (RejectedExecutionException exc) {
+            // too many waiting for the api already (or shutting down) - the request gets a 503
+            result.fail(exc);
+        }
+        return result;
+    }
+    
+    public SingleFlight<String> getFetches()
+    {
+        return _fetches;
+    }
+    
     // we always go to SS server to get products
+    // returns null if the fetch fails
     public List<Product> fetchProducts(String category, String filter)
     {
-        ArrayList<Product> result = null;
-        
         String parameters = "cat="+category+"&offset=0&limit=20";
         if (filter != null) {
             parameters += "&" + filter;
@@ -108,130 +347,253 @@ public class ShopStyleData extends AppServlet.Application
         System.out.println("fetch products with " + parameters);
         String url = formatUrl("products", parameters);
         
-        Map data = (Map)fetch(url);
-        
-        List<Map> products = (List<Map>)data.get("products");
-        result = new ArrayList<Product>(products.size());
-        for (Map pmap : products) {
-            Product pp = Product.fromJSON(pmap);
-            if (pp != null) {
-                result.add(pp);
+        return (List<Product>)fetch(url, ProductsParser);
+    }
+    
+    // walk through a products response, building Products as we go
+    // we never build maps for the products, and skip everything we don't use
+    // null if there's no products array - that's not an empty result, so it mustn't be cached as one
+    private static List<Product> readProducts(JSONPullParser pp) throws JSONParseException
+    {
+        List<Product> result = null;
+        if (pp.nextToken() != Token.StartObject) {
+            throw new JSONParseException("products response is not an object", null);
+        }
+        while (pp.nextToken() == Token.Name) {
+            String field = pp.currentName();
+            Token token = pp.nextToken();
+            if ("products".equals(field) && token == Token.StartArray) {
+                result = new ArrayList<Product>(20);
+                Token element;
+                while ((element = pp.nextToken()) != Token.EndArray) {
+                    if (element != Token.StartObject) {
+                        // a null or some such - skip it, not everything after it
+                        System.out.println("bad product in json, not an object: " + element);
+                        pp.skipValue();
+                        continue;
+                    }
+                    Product prod = Product.fromJSON(pp);
+                    if (prod != null) {
+                        result.add(prod);
+                    }
+                    else {
+                        System.out.println("bad product in json");
+                    }
+                }
             }
             else {
-                System.out.println("bad product in json");
+                pp.skipValue();
             }
         }
         
         return result;
     }
     
-    private void fetchRetailers()
+    // null if the fetch fails
+    private List<Retailer> fetchRetailers()
     {
         String url = formatUrl("retailers", null);
         
-        Map data = (Map)fetch(url);
+        Map data = (Map)fetch(url, RetailersParser);
+        if (data == null || !(data.get("retailers") instanceof List)) {
+            return null;
+        }
         
         List<Map> retailers = (List<Map>)data.get("retailers");
-        _retailers = new ArrayList<Retailer>(retailers.size());
+        List<Retailer> result = new ArrayList<Retailer>(retailers.size());
         for (Map rmap : retailers) {
             Retailer rr = Retailer.fromJSON(rmap);
             if (rr != null) {
-                _retailers.add(rr);
+                result.add(rr);
             }
             else {
                 System.out.println("bad retailer in json");
             }
         }
+        return result;
     }
 
-    private void fetchBrands()
+    // null if the fetch fails
+    private List<Brand> fetchBrands()
     {
         String url = formatUrl("brands", null);
         
-        Map data = (Map)fetch(url);
+        Map data = (Map)fetch(url, BrandsParser);
+        if (data == null || !(data.get("brands") instanceof List)) {
+            return null;
+        }
         
         List<Map> brands = (List<Map>)data.get("brands");
-        _brands = new ArrayList<Brand>(brands.size());
+        List<Brand> result = new ArrayList<Brand>(brands.size());
         for (Map bmap : brands) {
             Brand bb = Brand.fromJSON(bmap);
             if (bb != null) {
-                _brands.add(bb);
+                result.add(bb);
             }
             else {
                 System.out.println("bad brand in json");
             }
         }
+        return result;
     }
 
-    private void fetchColors()
+    // null if the fetch fails
+    private List<Color> fetchColors()
     {
         String url = formatUrl("colors", null);
         
-        Map data = (Map)fetch(url);
+        Map data = (Map)fetch(url, ColorsParser);
+        if (data == null || !(data.get("colors") instanceof List)) {
+            return null;
+        }
         
         List<Map> colors = (List<Map>)data.get("colors");
-        _colors = new ArrayList<Color>(colors.size());
+        List<Color> result = new ArrayList<Color>(colors.size());
         for (Map cmap : colors) {
             Color cc = Color.fromJSON(cmap);
-            if (colors != null) {
-                _colors.add(cc);
+            if (cc != null) {
+                result.add(cc);
             }
             else {
                 System.out.println("bad color in json");
             }
         }
+        return result;
     }
 
-    private void fetchWomensCategories()
+    // null if the fetch fails
+    private List<Category> fetchWomensCategories()
     {
         // just get the top-level women's categories
         String url = formatUrl("categories", "depth=1&cat=womens-clothes");
         
-        Map data = (Map)fetch(url);
+        Map data = (Map)fetch(url, CategoriesParser);
+        if (data == null || !(data.get("categories") instanceof List)) {
+            return null;
+        }
         
         List<Map> cats = (List<Map>)data.get("categories");
-        _womensCategories = new ArrayList<Category>(cats.size());
+        List<Category> result = new ArrayList<Category>(cats.size());
         for (Map cmap : cats) {
             Category cc = Category.fromJSON(cmap);
-            if (cats != null) {
-                _womensCategories.add(cc);
+            if (cc != null) {
+                result.add(cc);
             }
             else {
-                System.out.println("bad color in json");
+                System.out.println("bad category in json");
             }
         }
+        return result;
     }
 
-    private String formatUrl(String api, String parameters)
+    // a list fetched from the api, served from the last snapshot that worked
+    // a refresh that fails (or is still going) leaves the old snapshot in place
+    private abstract class ReferenceData<T>
     {
-        if (parameters != null) {
-            return String.format("http://api.shopstyle.com/api/v2/%s?pid=uid2004-79498-32&%s", api, parameters);
+        private final String _name;
+        private volatile List<T> _snapshot;  // null until the first fetch works
+        private volatile long _loadedAt;  // when the snapshot was fetched
+        private final AtomicBoolean _loadQueued = new AtomicBoolean();
+        private volatile long _lastTry;
+        
+        ReferenceData(String name)
+        {
+            _name = name;
+        }
+        
+        // null if the fetch fails
+        protected abstract List<T> fetch();
+        
+        String getName()
+        {
+            return _name;
         }
-        else {
-            return String.format("http://api.shopstyle.com/api/v2/%s?pid=uid2004-79498-32", api);
+        
+        List<T> get()
+        {
+            List<T> snapshot = _snapshot;
+            if (snapshot == null) {
+                // not loaded (startup hasn't got to it, or it failed) - get the refresher to try, but don't wait
+                // (and not over and over while the api is down)
+                if (System.currentTimeMillis() - _lastTry > MinRetryMs && _loadQueued.compareAndSet(false, true)) {
+                    _refresher.execute(new Runnable() {
+                        public void run()
+                        {
+                            _loadQueued.set(false);
+                            if (_snapshot == null) {
+                                refresh();
+                            }
+                        }
+                    });
+                }
+                return Collections.emptyList();
+            }
+            return snapshot;
+        }
+        
+        boolean refresh()
+        {
+            final long started = System.currentTimeMillis();
+            _lastTry = started;
+            // a startup load and a scheduled one at the same time share the fetch
+            List<T> fresh;
+            try {
+                fresh = _fetches.run(_name, new Callable<List<T>>() {
+                    public List<T> call()
+                    {
+                        // a fetch that finished after we were asked is as fresh as we need
+                        List<T> snapshot = _snapshot;
+                        if (snapshot != null && _loadedAt >= started) {
+                            return snapshot;
+                        }
+                        List<T> fetched = fetch();
+                        if (fetched != null) {
+                            // in place before the next refresh can start its flight
+                            _snapshot = Collections.unmodifiableList(fetched);
+                            _loadedAt = System.currentTimeMillis();
+                        }
+                        return fetched;
+                    }
+                });
+            }
+            catch (RuntimeException exc) {
+                // bad data from the api - this mustn't get out to the scheduler, which would stop refreshing
+                System.out.println("Exception fetching " + _name + ": " + exc);
+                fresh = null;
+            }
+            if (fresh == null) {
+                System.out.println("Couldn't refresh " + _name + ((_snapshot != null) ? ", keeping the previous list" : ""));
+                return false;
+            }
+            return true;
         }
     }
 
-    // fetch from the url - read result and parse JSON
-    private Object fetch(String url)
+    private String formatUrl(String api, String parameters)
+    {
+        return _client.formatUrl(api, parameters);
+    }
+
+    // fetch from the url, reading the result with the given parser
+    private Object fetch(String url, ResponseParser parser)
     {
         HttpMethodBase method = new GetMethod(url);
         
-        HttpClientParams clientParams = new HttpClientParams();
-        clientParams.setContentCharset("UTF-8");
-        HttpConnectionManager connectM = new SimpleHttpConnectionManager(true);
-        HttpClient client = new HttpClient(clientParams, connectM);
-        
         int statusCode;
         try {
-            statusCode = client.executeMethod(method);
+            statusCode = _client.getHttpClient().executeMethod(method);
             if (statusCode != HttpStatus.SC_OK) {
-                System.out.println("error: " + statusCode);
+                // the body is an error message, not data - and nothing should be cached from it
+                System.out.println("error: " + statusCode + " from " + url);
+                return null;
             }
-            String result = method.getResponseBodyAsString();
-            JSONReader jr = new JSONReader();
-            Map data = (Map)jr.parse(result);
-            return data;
+            // parse the body as it arrives, rather than reading it all into a String first
+            InputStream body = method.getResponseBodyAsStream();
+            if (body == null) {
+                return null;
+            }
+            Reader reader = new InputStreamReader(body, Charset.forName(method.getResponseCharSet()));
+            return parser.parse(reader);
         } catch (HttpException e) {
             // TODO Auto-generated catch block
             e.printStackTrace();
@@ -241,6 +603,9 @@ public class ShopStyleData extends AppServlet.Application
         } catch (JSONParseException e) {
             // TODO Auto-generated catch block
             e.printStackTrace();
+        } finally {
+            // back to the pool (whatever we didn't read of the body gets skipped first, so it can be reused)
+            method.releaseConnection();
         }
         
         return null;
@@ -4,6 +4,8 @@ import ksw.webserver.HerokuServer;
 
 public class ShopStyleServer extends HerokuServer
 {
+    public static final int DefaultRefreshMinutes = 60;
+    
     public static void main(String[] args)
     {
         try {
@@ -11,8 +13,29 @@ public class ShopStyleServer extends HerokuServer
 
             ss.initialize();
             
-            ShopStyleData ssdata = new ShopStyleData();
+            final ShopStyleData ssdata = new ShopStyleData();
             ss.setup("ksw/shopstyle/client", ssdata, "/ss", ShopStyleApi.class, null, null);
+            
+            // fetch the reference lists once we're listening, all at once, rather than on the first requests
+            for (final String name : ssdata.getReferenceNames()) {
+                ss.addStartupTask(name, new Runnable() {
+                    public void run()
+                    {
+                        ssdata.refreshReference(name);
+                    }
+                });
+            }
+            // then keep them fresh in the background (SHOPSTYLE_REFRESH_MINUTES)
+            ssdata.startRefreshing(getEnvInteger("SHOPSTYLE_REFRESH_MINUTES", DefaultRefreshMinutes) * 60 * 1000L);
+            
+            ss.addShutdownTask(new Runnable() {
+                public void run()
+                {
+                    ssdata.shutdown();
+                    ShopStyleClient.getShared().shutdown();
+                    System.out.println("Product cache: " + ssdata.getProductCache());
+                }
+            });
 
             ss.run();
         }
@@ -8,13 +8,10 @@ import ksw.kwutil.JSONReader;
 import ksw.kwutil.JSONReader.JSONParseException;
 
 import org.apache.commons.httpclient.HttpClient;
-import org.apache.commons.httpclient.HttpConnectionManager;
 import org.apache.commons.httpclient.HttpException;
 import org.apache.commons.httpclient.HttpMethodBase;
 import org.apache.commons.httpclient.HttpStatus;
-import org.apache.commons.httpclient.SimpleHttpConnectionManager;
 import org.apache.commons.httpclient.methods.GetMethod;
-import org.apache.commons.httpclient.params.HttpClientParams;
 
 public class TestShopStyle
 {
@@ -24,14 +21,12 @@ public class TestShopStyle
         //String url = uri.toASCIIString();
         //System.out.println("url is " + url);
         
-        String url = "http://api.shopstyle.com/api/v2/retailers?pid=uid2004-79498-32";
+        // the same pooled client (and base url, SHOPSTYLE_API_URL) as the server
+        ShopStyleClient ssClient = ShopStyleClient.getShared();
+        String url = ssClient.formatUrl("retailers", null);
         
         HttpMethodBase method = new GetMethod(url);
-        
-        HttpClientParams clientParams = new HttpClientParams();
-        clientParams.setContentCharset("UTF-8");
-        HttpConnectionManager connectM = new SimpleHttpConnectionManager(true);
-        HttpClient client = new HttpClient(clientParams, connectM);
+        HttpClient client = ssClient.getHttpClient();
         
         int statusCode;
         try {
@@ -58,8 +53,11 @@ public class TestShopStyle
         } catch (JSONParseException e) {
             // TODO Auto-generated catch block
             e.printStackTrace();
+        } finally {
+            method.releaseConnection();
         }
 
+        ssClient.shutdown();
         System.out.println("done");
     }
 }
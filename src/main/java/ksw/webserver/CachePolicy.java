@@ -0,0 +1,63 @@
+package ksw.webserver;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// which Cache-Control header to send for static files, by path prefix
+// the longest matching prefix wins; paths that don't match anything get no header
+// (so the browser decides, usually revalidating with If-Modified-Since)
+public class CachePolicy
+{
+    // kept longest prefix first
+    private final List<String[]> _rules = new ArrayList<String[]>();
+    
+    public CachePolicy()
+    {
+    }
+    
+    // parse rules like "/cl/jslib/=public, max-age=86400;/=no-cache"
+    // (rules are separated by ';', since the header values can have commas)
+    public static CachePolicy parse(String spec)
+    {
+        CachePolicy policy = new CachePolicy();
+        for (String rule : spec.split(";")) {
+            int equals = rule.indexOf('=');
+            if (equals <= 0) {
+                if (rule.trim().length() > 0) {
+                    System.out.println("Ignoring cache rule without a prefix: " + rule);
+                }
+                continue;
+            }
+            policy.add(rule.substring(0, equals).trim(), rule.substring(equals + 1).trim());
+        }
+        return policy;
+    }
+    
+    // send cacheControl (e.g. "public, max-age=86400", or "no-cache") for paths starting with prefix
+    public synchronized void add(String prefix, String cacheControl)
+    {
+        int index = 0;
+        while (index < _rules.size() && _rules.get(index)[0].length() >= prefix.length()) {
+            if (_rules.get(index)[0].equals(prefix)) {
+                _rules.remove(index);
+                break;
+            }
+            index++;
+        }
+        _rules.add(index, new String[] { prefix, cacheControl });
+    }
+    
+    // the Cache-Control value for the path, or null for none
+    public synchronized String getCacheControl(String path)
+    {
+        if (path == null) {
+            return null;
+        }
+        for (String[] rule : _rules) {
+            if (path.startsWith(rule[0])) {
+                return rule[1];
+            }
+        }
+        return null;
+    }
+}
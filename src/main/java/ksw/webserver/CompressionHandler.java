@@ -0,0 +1,488 @@
+package ksw.webserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Enumeration;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import ksw.servlet.ServletHelp;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Response;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.eclipse.jetty.server.handler.HandlerWrapper;
+
+// compresses (gzip or deflate) the responses of the handler it wraps, for clients that take it
+// meant for the action and REST handlers, whose JSON is big and repetitive - static files have their own
+// (precompressed) versions in StaticAssetCache
+// the start of the body is held back until we know it's big enough to be worth it, or it's finished
+// Deflaters are pooled, since each one has a chunk of native memory that's slow to get and to free
+// each dispatch gets its own wrapper, finished when the dispatch returns - so a suspended request (AppServlet's
+// AsyncResult) writes nothing on its first dispatch, and is compressed when it's resumed and written
+public class CompressionHandler extends HandlerWrapper
+{
+    public static final int DefaultMinSize = 1024;
+    public static final int DefaultLevel = 6;
+
+    private static final int BufferSize = 8192;
+    // enough for one per request thread that's busy compressing, the rest get ended
+    private static final int MaxPooled = 32;
+
+    private final int _minSize;
+    private final int _level;
+    private final BlockingQueue<Deflater> _gzipDeflaters = new ArrayBlockingQueue<Deflater>(MaxPooled);
+    private final BlockingQueue<Deflater> _zlibDeflaters = new ArrayBlockingQueue<Deflater>(MaxPooled);
+
+    public CompressionHandler(AbstractHandler handler)
+    {
+        this(handler, DefaultMinSize, DefaultLevel);
+    }
+
+    // responses smaller than minSize bytes go as they are, level is the Deflater level (1 fast to 9 small)
+    public CompressionHandler(AbstractHandler handler, int minSize, int level)
+    {
+        _minSize = minSize;
+        _level = level;
+        setHandler(handler);
+    }
+
+    @Override
+    public void handle(String target, Request baseRequest,
+                       HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException
+    {
+        String coding = null;
+        if (!"HEAD".equals(request.getMethod())) {
+            if (ServletHelp.acceptsEncoding(request, StaticAssetCache.Gzip)) {
+                coding = StaticAssetCache.Gzip;
+            }
+            else if (ServletHelp.acceptsEncoding(request, StaticAssetCache.Deflate)) {
+                coding = StaticAssetCache.Deflate;
+            }
+        }
+        if (!variesByEncoding(baseRequest.getResponse())) {
+            response.addHeader("Vary", "Accept-Encoding");
+        }
+        if (coding == null) {
+            super.handle(target, baseRequest, request, response);
+            return;
+        }
+
+        CompressedResponse compressed = new CompressedResponse(response, coding);
+        try {
+            super.handle(target, baseRequest, request, compressed);
+        }
+        finally {
+            compressed.finish();
+        }
+    }
+
+    // whether the response already says it varies by Accept-Encoding (from an earlier dispatch of the request)
+    private static boolean variesByEncoding(Response response)
+    {
+        Enumeration values = response.getHeaders("Vary");
+        while (values != null && values.hasMoreElements()) {
+            if (((String)values.nextElement()).toLowerCase().contains("accept-encoding")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Deflater getDeflater(boolean gzip)
+    {
+        Deflater deflater = (gzip ? _gzipDeflaters : _zlibDeflaters).poll();
+        if (deflater == null) {
+            // gzip gets raw deflate data, we write its header and trailer (GzipFormat)
+            deflater = new Deflater(_level, gzip);
+        }
+        return deflater;
+    }
+
+    private void releaseDeflater(Deflater deflater, boolean gzip)
+    {
+        deflater.reset();
+        if (!(gzip ? _gzipDeflaters : _zlibDeflaters).offer(deflater)) {
+            deflater.end();
+        }
+    }
+
+    // holds the headers that depend on whether we compress (Content-Length, Content-Encoding) until we know
+    private class CompressedResponse extends HttpServletResponseWrapper
+    {
+        private final String _coding;
+        private CompressingStream _stream;
+        private PrintWriter _writer;
+        private long _contentLength = -1;  // as set by the handler
+        private boolean _noCompression;  // the handler did its own encoding
+        private int _status = 200;  // (servlet 2.5 responses can't tell us)
+
+        CompressedResponse(HttpServletResponse response, String coding)
+        {
+            super(response);
+            _coding = coding;
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException
+        {
+            if (_writer != null) {
+                throw new IllegalStateException("getWriter() already called");
+            }
+            return getStream();
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException
+        {
+            if (_writer == null) {
+                if (_stream != null) {
+                    throw new IllegalStateException("getOutputStream() already called");
+                }
+                _writer = new PrintWriter(new OutputStreamWriter(getStream(), getCharacterEncoding()));
+            }
+            return _writer;
+        }
+
+        private CompressingStream getStream()
+        {
+            if (_stream == null) {
+                _stream = new CompressingStream(this);
+            }
+            return _stream;
+        }
+
+        @Override
+        public void setStatus(int status)
+        {
+            _status = status;
+            super.setStatus(status);
+        }
+
+        @Override
+        public void setStatus(int status, String message)
+        {
+            _status = status;
+            super.setStatus(status, message);
+        }
+
+        @Override
+        public void setContentLength(int length)
+        {
+            setLength(length);
+        }
+
+        @Override
+        public void setHeader(String name, String value)
+        {
+            if (!checkHeader(name, value)) {
+                super.setHeader(name, value);
+            }
+        }
+
+        @Override
+        public void addHeader(String name, String value)
+        {
+            if (!checkHeader(name, value)) {
+                super.addHeader(name, value);
+            }
+        }
+
+        @Override
+        public void setIntHeader(String name, int value)
+        {
+            if (!checkHeader(name, Integer.toString(value))) {
+                super.setIntHeader(name, value);
+            }
+        }
+
+        @Override
+        public void addIntHeader(String name, int value)
+        {
+            if (!checkHeader(name, Integer.toString(value))) {
+                super.addIntHeader(name, value);
+            }
+        }
+
+        // returns true if we've taken care of the header
+        private boolean checkHeader(String name, String value)
+        {
+            if ("Content-Length".equalsIgnoreCase(name)) {
+                try {
+                    setLength(Long.parseLong(value.trim()));
+                    return true;
+                }
+                catch (NumberFormatException exc) {
+                    return false;
+                }
+            }
+            if ("Content-Encoding".equalsIgnoreCase(name)) {
+                _noCompression = true;
+            }
+            return false;
+        }
+
+        private void setLength(long length)
+        {
+            _contentLength = length;
+            if (length < _minSize) {
+                // we know now it isn't worth compressing
+                _noCompression = true;
+            }
+            if (_noCompression || (_stream != null && _stream.isDecided())) {
+                super.setHeader("Content-Length", Long.toString(length));
+            }
+        }
+
+        @Override
+        public void flushBuffer() throws IOException
+        {
+            if (_writer != null) {
+                _writer.flush();
+            }
+            if (_stream != null) {
+                _stream.flush();
+            }
+            super.flushBuffer();
+        }
+
+        @Override
+        public void reset()
+        {
+            super.reset();
+            resetBuffer();
+            _contentLength = -1;
+            _noCompression = false;
+        }
+
+        @Override
+        public void resetBuffer()
+        {
+            super.resetBuffer();
+            if (_stream != null) {
+                _stream.resetBuffer();
+            }
+        }
+
+        void finish() throws IOException
+        {
+            if (_writer != null) {
+                _writer.flush();
+            }
+            if (_stream != null) {
+                _stream.finish();
+            }
+        }
+
+        // whether to compress, now that we know it's at least size bytes (or exactly that many, when finished)
+        boolean shouldCompress(long size)
+        {
+            if (_noCompression || size < _minSize || getResponse().isCommitted()) {
+                return false;
+            }
+            if (_status < 200 || _status == 204 || _status == 304) {
+                return false;
+            }
+            return StaticAssetCache.isCompressible(getContentType());
+        }
+
+        // start the response as compressed, length is -1 if we don't know it yet
+        void startCompressed(long length)
+        {
+            super.setHeader("Content-Encoding", _coding);
+            if (length >= 0) {
+                super.setHeader("Content-Length", Long.toString(length));
+            }
+        }
+
+        // start the response as is, length is -1 if we don't know it yet
+        void startPlain(long length)
+        {
+            if (_contentLength >= 0) {
+                super.setHeader("Content-Length", Long.toString(_contentLength));
+            }
+            else if (length >= 0) {
+                super.setHeader("Content-Length", Long.toString(length));
+            }
+        }
+
+        OutputStream getRealStream() throws IOException
+        {
+            return getResponse().getOutputStream();
+        }
+
+        boolean isGzip()
+        {
+            return StaticAssetCache.Gzip.equals(_coding);
+        }
+    }
+
+    private class CompressingStream extends ServletOutputStream
+    {
+        private final CompressedResponse _response;
+        private final byte[] _buffer = new byte[Math.max(_minSize, BufferSize)];
+        private int _count;
+        private OutputStream _out;  // the real stream, once we've decided
+        private Deflater _deflater;  // if we're compressing
+        private CRC32 _crc;  // for gzip
+        private byte[] _deflated;  // deflater output
+        private boolean _finished;
+
+        CompressingStream(CompressedResponse response)
+        {
+            _response = response;
+        }
+
+        boolean isDecided()
+        {
+            return _out != null;
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            write(new byte[] { (byte)b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            if (_finished) {
+                throw new IOException("response already finished");
+            }
+            if (_out == null) {
+                if (_count + len <= _buffer.length) {
+                    System.arraycopy(b, off, _buffer, _count, len);
+                    _count += len;
+                    return;
+                }
+                // more than we hold, so it's going out in pieces without a length
+                _out = _response.getRealStream();
+                if (_response.shouldCompress(_count + len)) {
+                    _response.startCompressed(-1);
+                    startDeflater(_out);
+                }
+                else {
+                    _response.startPlain(-1);
+                }
+                writeOut(_out, _buffer, 0, _count);
+                _count = 0;
+            }
+            writeOut(_out, b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException
+        {
+            // until we've decided, a flush just has to wait
+            if (_out != null && !_finished) {
+                if (_deflater != null) {
+                    // push out what the deflater is holding, without ending the stream
+                    int length;
+                    do {
+                        length = _deflater.deflate(_deflated, 0, _deflated.length, Deflater.SYNC_FLUSH);
+                        _out.write(_deflated, 0, length);
+                    } while (length == _deflated.length);
+                }
+                _out.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            finish();
+        }
+
+        void resetBuffer()
+        {
+            if (_out == null) {
+                _count = 0;
+            }
+        }
+
+        void finish() throws IOException
+        {
+            if (_finished) {
+                return;
+            }
+            _finished = true;
+            try {
+                if (_out == null) {
+                    // it all fit in the buffer, so we can give the length either way
+                    _out = _response.getRealStream();
+                    if (_response.shouldCompress(_count)) {
+                        ByteArrayOutputStream whole = new ByteArrayOutputStream(_count / 3 + 64);
+                        startDeflater(whole);
+                        writeOut(whole, _buffer, 0, _count);
+                        endDeflater(whole);
+                        _response.startCompressed(whole.size());
+                        whole.writeTo(_out);
+                    }
+                    else {
+                        _response.startPlain(_count);
+                        _out.write(_buffer, 0, _count);
+                    }
+                }
+                else if (_deflater != null) {
+                    endDeflater(_out);
+                }
+                _out.flush();
+            }
+            finally {
+                if (_deflater != null) {
+                    releaseDeflater(_deflater, _crc != null);
+                    _deflater = null;
+                }
+            }
+        }
+
+        private void startDeflater(OutputStream out) throws IOException
+        {
+            boolean gzip = _response.isGzip();
+            _deflater = getDeflater(gzip);
+            _deflated = new byte[BufferSize];
+            if (gzip) {
+                _crc = new CRC32();
+                GzipFormat.writeHeader(out);
+            }
+        }
+
+        private void endDeflater(OutputStream out) throws IOException
+        {
+            _deflater.finish();
+            while (!_deflater.finished()) {
+                out.write(_deflated, 0, _deflater.deflate(_deflated));
+            }
+            if (_crc != null) {
+                GzipFormat.writeTrailer(out, _crc.getValue(), _deflater.getBytesRead());
+            }
+        }
+
+        private void writeOut(OutputStream out, byte[] b, int off, int len) throws IOException
+        {
+            if (_deflater == null) {
+                out.write(b, off, len);
+                return;
+            }
+            if (_crc != null) {
+                _crc.update(b, off, len);
+            }
+            _deflater.setInput(b, off, len);
+            while (!_deflater.needsInput()) {
+                out.write(_deflated, 0, _deflater.deflate(_deflated));
+            }
+        }
+    }
+}
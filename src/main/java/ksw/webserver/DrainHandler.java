@@ -0,0 +1,112 @@
+package ksw.webserver;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.continuation.Continuation;
+import org.eclipse.jetty.continuation.ContinuationListener;
+import org.eclipse.jetty.server.AsyncContinuation;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.HandlerWrapper;
+
+import ksw.servlet.ServletHelp;
+
+// wraps the server's handlers and keeps count of the requests in progress, so that a shutdown can wait for them
+// once draining, new requests (on connections that were already open) get a 503 and the connection is closed
+// a suspended request counts until it completes, not just until its first dispatch returns
+public class DrainHandler extends HandlerWrapper
+{
+    private final Object _lock = new Object();
+    private int _inFlight;  // guarded by _lock
+    private volatile boolean _draining;
+    private int _retryAfter;  // seconds
+
+    public DrainHandler(int retryAfter)
+    {
+        _retryAfter = retryAfter;
+    }
+
+    @Override
+    public void handle(String target, Request baseRequest,
+                       HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException
+    {
+        AsyncContinuation continuation = baseRequest.getAsyncContinuation();
+        boolean initial = continuation.isInitial();
+        if (initial) {
+            if (_draining) {
+                baseRequest.setHandled(true);
+                ServletHelp.writeUnavailable(response, _retryAfter);
+                return;
+            }
+            changeInFlight(1);
+        }
+        try {
+            super.handle(target, baseRequest, request, response);
+        }
+        finally {
+            if (initial) {
+                if (continuation.isSuspended()) {
+                    // it's not done until it completes (the later dispatches aren't counted)
+                    continuation.addContinuationListener(new ContinuationListener() {
+                        public void onComplete(Continuation continuation)
+                        {
+                            changeInFlight(-1);
+                        }
+
+                        public void onTimeout(Continuation continuation)
+                        {
+                        }
+                    });
+                }
+                else {
+                    changeInFlight(-1);
+                }
+            }
+        }
+    }
+
+    private void changeInFlight(int delta)
+    {
+        synchronized (_lock) {
+            _inFlight += delta;
+            if (_inFlight == 0) {
+                _lock.notifyAll();
+            }
+        }
+    }
+
+    public int getInFlight()
+    {
+        synchronized (_lock) {
+            return _inFlight;
+        }
+    }
+
+    public boolean isDraining()
+    {
+        return _draining;
+    }
+
+    // turn new requests away from now on
+    public void startDraining()
+    {
+        _draining = true;
+    }
+
+    // wait until there are no requests in progress, or the deadline (System.currentTimeMillis) passes
+    // returns the number still in progress
+    public int awaitDrained(long deadline) throws InterruptedException
+    {
+        synchronized (_lock) {
+            long now = System.currentTimeMillis();
+            while (_inFlight > 0 && now < deadline) {
+                _lock.wait(deadline - now);
+                now = System.currentTimeMillis();
+            }
+            return _inFlight;
+        }
+    }
+}
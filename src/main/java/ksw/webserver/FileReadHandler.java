@@ -2,11 +2,14 @@ package ksw.webserver;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import ksw.servlet.ByteRange;
 import ksw.servlet.ServletHelp;
 
 import org.eclipse.jetty.server.Request;
@@ -16,10 +19,25 @@ import org.eclipse.jetty.server.handler.AbstractHandler;
 public class FileReadHandler extends AbstractHandler
 {
     private File _fileDir;
+    private StaticAssetCache _cache;  // null to always go to the file
+    private boolean _fallThrough;  // leave requests for missing files to the next handler
+    private CachePolicy _cachePolicy;  // null for no Cache-Control headers
 
     public FileReadHandler (File fileDir)
+    {
+        this(fileDir, null, false);
+    }
+    
+    public FileReadHandler (File fileDir, StaticAssetCache cache, boolean fallThrough)
     {
         _fileDir = fileDir;
+        _cache = cache;
+        _fallThrough = fallThrough;
+    }
+    
+    public void setCachePolicy(CachePolicy cachePolicy)
+    {
+        _cachePolicy = cachePolicy;
     }
 
     @Override
@@ -28,35 +46,152 @@ public class FileReadHandler extends AbstractHandler
     {
         // what kind of request do we have?
         String method = request.getMethod();
-        if ("GET".equals(method)) {
-            doGet(request, response);
-        }
-        else if ("HEAD".equals(method)) {
-            doHead(request, response);
+        boolean head = "HEAD".equals(method);
+        if (head || "GET".equals(method)) {
+            File readFile = findFile(request);
+            if (readFile == null && _fallThrough) {
+                return;
+            }
+            baseRequest.setHandled(true);
+            if (head) {
+                doHead(readFile, request, response);
+            }
+            else {
+                doGet(readFile, request, response);
+            }
         }
-        else {
+        else if (!_fallThrough) {
             // we don't handle anything else
-            response.setStatus(404);
+            baseRequest.setHandled(true);
             response.sendError(404);
         }
     }
 
-    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
+    // the file the request is for, or null if there isn't one
+    // a directory means its index.html
+    protected File findFile(HttpServletRequest request)
     {
         String pathInfo = request.getPathInfo();
         if (pathInfo == null || pathInfo.charAt(0) != '/') {
+            return null;
+        }
+        File readFile = new File(_fileDir, pathInfo);
+        if (readFile.isDirectory()) {
+            readFile = new File(readFile, "index.html");
+        }
+        return readFile.isFile() ? readFile : null;
+    }
+
+    protected void doGet(File readFile, HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
+    {
+        serveFile(readFile, request, response, false);
+    }
+    
+    // same headers as a GET, but no body
+    protected void doHead(File readFile, HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
+    {
+        serveFile(readFile, request, response, true);
+    }
+    
+    private void serveFile(File readFile, HttpServletRequest request, HttpServletResponse response, boolean head) throws IOException
+    {
+        if (readFile == null) {
             // can't find it
             response.sendError(404);
             return;
         }
+        
+        StaticAssetCache.Asset asset = (_cache != null) ? _cache.get(readFile) : null;
+        if (asset == null) {
+            // not cached (too big, probably)
+            long lastModified = readFile.lastModified();
+            long length = readFile.length();
+            String etag = ServletHelp.makeETag(length, lastModified, null);
+            if (checkNotModified(request, response, etag, lastModified)) {
+                return;
+            }
+            List<ByteRange> ranges = head ? null : findRanges(request, etag, lastModified, length);
+            if (ranges != null) {
+                ServletHelp.writeRangesToResponse(readFile, null, length, ranges, ServletHelp.mimeFromFile(readFile), response);
+                return;
+            }
+            if (head) {
+                String mimeType = ServletHelp.mimeFromFile(readFile);
+                if (mimeType != null) {
+                    response.setContentType(mimeType);
+                }
+                response.setHeader("Content-Length", Long.toString(length));
+                return;
+            }
+            ServletHelp.writeFileToResponse(readFile, response);
+            return;
+        }
+        
+        // a range is always of the uncompressed content
+        ByteBuffer plain = asset.getContent(null);
+        List<ByteRange> ranges = head ? null : findRanges(request, asset.getETag(null), asset.getLastModified(), plain.remaining());
+        
+        // otherwise pick the smallest version the client can take
+        String coding = null;
+        if (asset.isCompressed()) {
+            response.setHeader("Vary", "Accept-Encoding");
+            if (ranges != null) {
+                // leave it uncompressed
+            }
+            else if (asset.getContent(StaticAssetCache.Gzip) != null && ServletHelp.acceptsEncoding(request, StaticAssetCache.Gzip)) {
+                coding = StaticAssetCache.Gzip;
+            }
+            else if (asset.getContent(StaticAssetCache.Deflate) != null && ServletHelp.acceptsEncoding(request, StaticAssetCache.Deflate)) {
+                coding = StaticAssetCache.Deflate;
+            }
+        }
+        if (checkNotModified(request, response, asset.getETag(coding), asset.getLastModified())) {
+            return;
+        }
+        if (ranges != null) {
+            ServletHelp.writeRangesToResponse(readFile, plain, plain.remaining(), ranges, asset.getMimeType(), response);
+            return;
+        }
+        ByteBuffer content = asset.getContent(coding);
+        if (asset.getMimeType() != null) {
+            response.setContentType(asset.getMimeType());
+        }
+        if (coding != null) {
+            response.setHeader("Content-Encoding", coding);
+        }
+        response.setHeader("Content-Length", Integer.toString(content.remaining()));
+        if (!head) {
+            ServletHelp.writeBufferToResponse(content, response);
+        }
+    }
     
-        File readFile = new File(_fileDir, pathInfo);
-        ServletHelp.writeFileToResponse(readFile, response);
+    // sets the validator and caching headers, and sends a 304 (returning true) if the client's copy is current
+    private boolean checkNotModified(HttpServletRequest request, HttpServletResponse response, String etag, long lastModified)
+    {
+        response.setHeader("Accept-Ranges", "bytes");
+        response.setHeader("ETag", etag);
+        response.setDateHeader("Last-Modified", lastModified);
+        if (_cachePolicy != null) {
+            String cacheControl = _cachePolicy.getCacheControl(request.getRequestURI());
+            if (cacheControl != null) {
+                response.setHeader("Cache-Control", cacheControl);
+            }
+        }
+        if (ServletHelp.isNotModified(request, etag, lastModified)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return true;
+        }
+        return false;
     }
     
-    protected void doHead(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
+    // the ranges asked for, or null to send the whole file (no Range, or an If-Range for an older version)
+    private List<ByteRange> findRanges(HttpServletRequest request, String etag, long lastModified, long length)
     {
-        System.out.println("Unhandled head request in FileReadHandler!!");
+        String range = request.getHeader("Range");
+        if (range == null || !ByteRange.ifRangeMatches(request, etag, lastModified)) {
+            return null;
+        }
+        return ByteRange.parse(range, length);
     }
 
 }
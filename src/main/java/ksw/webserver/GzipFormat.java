@@ -0,0 +1,33 @@
+package ksw.webserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+// the bits of the gzip format around raw deflate data (RFC 1952)
+// we write these ourselves so that we can use a Deflater of our choosing (level, pooling)
+class GzipFormat
+{
+    // magic, deflate method, no flags, no mtime, no extra flags, unknown OS
+    private static final byte[] Header = {0x1f, (byte)0x8b, 8, 0, 0, 0, 0, 0, 0, (byte)0xff};
+    
+    public static void writeHeader(OutputStream out) throws IOException
+    {
+        out.write(Header);
+    }
+    
+    // crc of the uncompressed data, and its length (mod 2^32)
+    public static void writeTrailer(OutputStream out, long crc, long length) throws IOException
+    {
+        writeInt(out, (int)crc);
+        writeInt(out, (int)length);
+    }
+    
+    private static void writeInt(OutputStream out, int value) throws IOException
+    {
+        // little-endian
+        out.write(value & 0xff);
+        out.write((value >> 8) & 0xff);
+        out.write((value >> 16) & 0xff);
+        out.write((value >> 24) & 0xff);
+    }
+}
@@ -0,0 +1,43 @@
+package ksw.webserver;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+
+import ksw.kwutil.JSONWriter;
+
+// answers 200 as soon as the server is listening, with whether startup has finished and how long it took, as JSON
+public class HealthHandler extends AbstractHandler
+{
+    private Startup _startup;
+    
+    public HealthHandler(Startup startup)
+    {
+        _startup = startup;
+    }
+    
+    @Override
+    public void handle(String target, Request baseRequest,
+                       HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException
+    {
+        baseRequest.setHandled(true);
+        response.setContentType("application/json");
+        response.setHeader("Cache-Control", "no-cache");
+        
+        JSONWriter jwriter = new JSONWriter();
+        jwriter.startObject();
+        jwriter.addItem("status", "ok");
+        _startup.toJSON(jwriter);
+        jwriter.endObject();
+        
+        PrintWriter writer = response.getWriter();
+        jwriter.writeTo(writer);
+        writer.close();
+    }
+}
@@ -1,6 +1,9 @@
 package ksw.webserver;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
 
 import ksw.servlet.AppServlet;
 
@@ -8,6 +11,13 @@ import ksw.servlet.AppServlet;
 public class HerokuServer extends WebServer
 {
     public static final int DefaultPortNumber = 8060;
+    public static final int DefaultAssetCacheMB = 32;
+    public static final String DefaultHealthPath = "/health";
+    private static final long MaxCachedFileSize = 4 * 1024 * 1024;
+    private static final long AssetRevalidateMs = 2000;
+    // the libraries change rarely, so browsers can hold them for a day
+    // everything else gets checked each time (which is cheap, a 304 when it hasn't changed)
+    public static final String DefaultCacheControl = "/cl/jslib/=public, max-age=86400;/=no-cache";
 
     protected HerokuServer()
     {
@@ -18,7 +28,87 @@ public class HerokuServer extends WebServer
     {
         int portNumber = figurePort();
         //initialize(null, portNumber, null, null);
-        lowInit(portNumber, "");
+        lowInit(portNumber, "", figureServerOptions());
+        
+        // the request thread status, if wanted (e.g. WEB_STATUS_PATH=/status)
+        String statusPath = System.getenv("WEB_STATUS_PATH");
+        if (statusPath != null && statusPath.length() > 0) {
+            addStatusHandler(statusPath);
+        }
+        // the health check answers as soon as we're listening (WEB_HEALTH_PATH, /health if not set)
+        String healthPath = System.getenv("WEB_HEALTH_PATH");
+        addHealthHandler((healthPath != null && healthPath.length() > 0) ? healthPath : DefaultHealthPath);
+    }
+    
+    // connector and thread options, from the environment (see WebServer.createConnector and createRequestPool)
+    // WEB_CONNECTOR (nio or bio), WEB_ACCEPTORS, WEB_IDLE_TIMEOUT (ms), WEB_ACCEPT_QUEUE,
+    // WEB_MIN_THREADS, WEB_MAX_THREADS, WEB_MAX_QUEUED, WEB_RETRY_AFTER (s)
+    // WEB_COMPRESS_MIN (bytes, -1 for no compression), WEB_COMPRESS_LEVEL, WEB_SHUTDOWN_TIMEOUT (ms)
+    private Map<String, Object> figureServerOptions()
+    {
+        Map<String, Object> options = new HashMap<String, Object>();
+        String connector = System.getenv("WEB_CONNECTOR");
+        if (connector != null && connector.length() > 0) {
+            options.put(ConnectorArg, connector);
+        }
+        putEnvInteger(options, AcceptorsArg, "WEB_ACCEPTORS");
+        putEnvInteger(options, IdleTimeoutArg, "WEB_IDLE_TIMEOUT");
+        putEnvInteger(options, AcceptQueueArg, "WEB_ACCEPT_QUEUE");
+        putEnvInteger(options, MinThreadsArg, "WEB_MIN_THREADS");
+        putEnvInteger(options, MaxThreadsArg, "WEB_MAX_THREADS");
+        putEnvInteger(options, MaxQueuedArg, "WEB_MAX_QUEUED");
+        putEnvInteger(options, RetryAfterArg, "WEB_RETRY_AFTER");
+        putEnvInteger(options, CompressMinArg, "WEB_COMPRESS_MIN");
+        putEnvInteger(options, CompressLevelArg, "WEB_COMPRESS_LEVEL");
+        putEnvInteger(options, ShutdownTimeoutArg, "WEB_SHUTDOWN_TIMEOUT");
+        return options;
+    }
+    
+    // WEB_ASSET_CACHE_MB sets the size of the static file cache (0 for no cache)
+    private StaticAssetCache figureAssetCache()
+    {
+        long cacheBytes = getEnvInteger("WEB_ASSET_CACHE_MB", DefaultAssetCacheMB) * 1024L * 1024L;
+        if (cacheBytes <= 0) {
+            return null;
+        }
+        // files over a few MB (video, say) aren't worth holding
+        return new StaticAssetCache(cacheBytes, Math.min(cacheBytes / 4, MaxCachedFileSize), AssetRevalidateMs);
+    }
+    
+    // WEB_CACHE_CONTROL sets the Cache-Control headers for static files, by path prefix (see CachePolicy.parse)
+    private CachePolicy figureCachePolicy()
+    {
+        String spec = System.getenv("WEB_CACHE_CONTROL");
+        return CachePolicy.parse((spec != null && spec.length() > 0) ? spec : DefaultCacheControl);
+    }
+    
+    protected static void putEnvInteger(Map<String, Object> options, String option, String envName)
+    {
+        Integer value = parseEnvInteger(envName);
+        if (value != null) {
+            options.put(option, value);
+        }
+    }
+    
+    // the environment variable as a number, or defaultValue if it isn't set (or isn't a number)
+    protected static int getEnvInteger(String envName, int defaultValue)
+    {
+        Integer value = parseEnvInteger(envName);
+        return (value != null) ? value : defaultValue;
+    }
+    
+    private static Integer parseEnvInteger(String envName)
+    {
+        String valueS = System.getenv(envName);
+        if (valueS != null && valueS.length() > 0) {
+            try {
+                return Integer.valueOf(valueS);
+            }
+            catch (NumberFormatException exc) {
+                System.out.println("Ignoring " + envName + ", not a number: " + valueS);
+            }
+        }
+        return null;
     }
 
     private int figurePort()
@@ -52,12 +142,28 @@ public class HerokuServer extends WebServer
             libPath = "src/main/webapp";
         }
 
-        addResourceHandler(contentPath, "");
-        addResourceHandler(libPath, "");
+        // static files come out of a shared cache
+        // the content is looked for first, then the libraries (when they're somewhere else)
+        // both are at the root, so anything that isn't a file has to fall through to the servlet
+        final StaticAssetCache cache = figureAssetCache();
+        if (cache != null) {
+            addShutdownTask(new Runnable() {
+                public void run()
+                {
+                    System.out.println("Asset cache: " + cache.size() + " files, " + cache.getBytes() + " bytes");
+                }
+            });
+        }
+        CachePolicy cachePolicy = figureCachePolicy();
+        addFileHandler(contentPath, "", cache, true).setCachePolicy(cachePolicy);
+        if (!new File(libPath).getCanonicalFile().equals(new File(contentPath).getCanonicalFile())) {
+            addFileHandler(libPath, "", cache, true).setCachePolicy(cachePolicy);
+        }
         
         // set up the servlet, used to handle actions
         AppServlet appServlet = new AppServlet(application);
-        addContextHandler(appServlet, apiPath);
+        appServlet.setRetryAfter(getRetryAfter());
+        addContextHandler(compressed(appServlet), apiPath);
         // set actions and cookies here
         if (apiClass != null) {
             appServlet.registerActions(apiClass);
@@ -0,0 +1,40 @@
+package ksw.webserver;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.HandlerWrapper;
+
+import ksw.servlet.ServletHelp;
+
+// wraps the server's handlers, and answers 503 (with a Retry-After) instead of handling the requests
+// that came in while the request pool's queue was full (see RequestPool)
+public class LoadShedHandler extends HandlerWrapper
+{
+    private RequestPool _pool;
+    private int _retryAfter;  // seconds
+    
+    public LoadShedHandler(RequestPool pool, int retryAfter)
+    {
+        _pool = pool;
+        _retryAfter = retryAfter;
+    }
+    
+    @Override
+    public void handle(String target, Request baseRequest,
+                       HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException
+    {
+        // a resumed request was already taken, it just gets finished
+        if (_pool.isShedding() && baseRequest.getAsyncContinuation().isInitial()) {
+            _pool.recordShed();
+            baseRequest.setHandled(true);
+            ServletHelp.writeUnavailable(response, _retryAfter);
+            return;
+        }
+        super.handle(target, baseRequest, request, response);
+    }
+}
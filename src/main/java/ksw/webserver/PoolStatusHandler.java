@@ -0,0 +1,42 @@
+package ksw.webserver;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+
+import ksw.kwutil.JSONWriter;
+
+// reports how busy the request pool is, as JSON
+public class PoolStatusHandler extends AbstractHandler
+{
+    private RequestPool _pool;
+    
+    public PoolStatusHandler(RequestPool pool)
+    {
+        _pool = pool;
+    }
+    
+    @Override
+    public void handle(String target, Request baseRequest,
+                       HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException
+    {
+        baseRequest.setHandled(true);
+        response.setContentType("application/json");
+        response.setHeader("Cache-Control", "no-cache");
+        
+        JSONWriter jwriter = new JSONWriter();
+        jwriter.startObject();
+        _pool.toJSON(jwriter);
+        jwriter.endObject();
+        
+        PrintWriter writer = response.getWriter();
+        jwriter.writeTo(writer);
+        writer.close();
+    }
+}
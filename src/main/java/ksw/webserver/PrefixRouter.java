@@ -0,0 +1,133 @@
+package ksw.webserver;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.ContextHandler;
+import org.eclipse.jetty.server.handler.HandlerCollection;
+
+// sends each request to the handlers for the longest context path that matches it, instead of trying
+// every context in turn like HandlerList does
+// the context paths go into a trie (one level per path segment) when the handlers are set, so finding
+// the handlers costs one map lookup per segment of the request path, however many handlers there are
+// if the handlers for a path don't handle the request (a file handler with fall through, say), the ones
+// for the next shorter matching path get it, and so on up to the root
+// handlers that aren't ContextHandlers are treated as being at the root
+public class PrefixRouter extends HandlerCollection
+{
+    private Node _root = new Node();
+
+    public PrefixRouter()
+    {
+    }
+
+    @Override
+    public void setHandlers(Handler[] handlers)
+    {
+        super.setHandlers(handlers);
+        Node root = new Node();
+        if (handlers != null) {
+            for (Handler handler : handlers) {
+                String contextPath = (handler instanceof ContextHandler) ? ((ContextHandler)handler).getContextPath() : null;
+                root.find(contextPath, true).add(handler);
+            }
+        }
+        root.link(null);
+        _root = root;
+    }
+
+    @Override
+    public void handle(String target, Request baseRequest,
+                       HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException
+    {
+        if (!isStarted()) {
+            return;
+        }
+        Node node = _root.find(target, false);
+        if (node._handlers == null) {
+            node = node._fallback;
+        }
+        for (; node != null; node = node._fallback) {
+            for (Handler handler : node._handlers) {
+                handler.handle(target, baseRequest, request, response);
+                if (baseRequest.isHandled()) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private static class Node
+    {
+        private Map<String, Node> _children;  // by path segment, null if none
+        private Handler[] _handlers;  // registered at exactly this path, in order - null if none
+        private Node _fallback;  // the nearest node above this with handlers
+
+        // the node for the path, or (without create) the deepest node that the path starts with
+        Node find(String path, boolean create)
+        {
+            Node node = this;
+            if (path == null) {
+                return node;
+            }
+            int length = path.length();
+            int start = 0;
+            while (start < length) {
+                int end = path.indexOf('/', start);
+                if (end < 0) {
+                    end = length;
+                }
+                if (end > start) {
+                    String segment = path.substring(start, end);
+                    Node child = (node._children != null) ? node._children.get(segment) : null;
+                    if (child == null) {
+                        if (!create) {
+                            return node;
+                        }
+                        if (node._children == null) {
+                            node._children = new HashMap<String, Node>(4);
+                        }
+                        child = new Node();
+                        node._children.put(segment, child);
+                    }
+                    node = child;
+                }
+                start = end + 1;
+            }
+            return node;
+        }
+
+        void add(Handler handler)
+        {
+            List<Handler> handlers = new ArrayList<Handler>();
+            if (_handlers != null) {
+                for (Handler h : _handlers) {
+                    handlers.add(h);
+                }
+            }
+            handlers.add(handler);
+            _handlers = handlers.toArray(new Handler[handlers.size()]);
+        }
+
+        // set the fallbacks, once all the handlers are in
+        void link(Node fallback)
+        {
+            _fallback = fallback;
+            if (_children != null) {
+                Node childFallback = (_handlers != null) ? this : fallback;
+                for (Node child : _children.values()) {
+                    child.link(childFallback);
+                }
+            }
+        }
+    }
+}
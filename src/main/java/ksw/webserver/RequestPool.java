@@ -0,0 +1,186 @@
+package ksw.webserver;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
+
+import ksw.kwutil.JSONWriter;
+
+// the threads that handle requests, with a queue of at most maxQueued requests waiting for a thread
+// the limit is applied as the connector hands work over: what doesn't fit in the queue goes to a couple
+// of shedding threads instead, where the LoadShedHandler answers it with a 503 straight away - so the
+// requests we've taken never wait behind more than maxQueued others, and the ones we turn away don't wait
+// behind them at all
+// if the shedding threads are backed up too, the hand-over fails and Jetty tries again on its next select
+// (the connections wait in the kernel meanwhile)
+public class RequestPool
+{
+    private static final int ShedThreads = 2;
+    private static final int MaxShedQueued = 64;
+    
+    private final BoundedPool _pool;
+    private final BlockingQueue<Runnable> _queue;
+    private final ThreadPoolExecutor _shedder;
+    private final int _maxQueued;
+    private final AtomicLong _shedCount;
+    private final AtomicLong _refusedCount;
+    
+    public RequestPool(int minThreads, int maxThreads, int maxQueued)
+    {
+        _queue = new ArrayBlockingQueue<Runnable>(Math.max(1, maxQueued));
+        _pool = new BoundedPool(_queue);
+        _pool.setName("request");
+        _pool.setMinThreads(minThreads);
+        _pool.setMaxThreads(maxThreads);
+        _shedder = new ThreadPoolExecutor(ShedThreads, ShedThreads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(MaxShedQueued), new ThreadFactory() {
+                    private AtomicInteger _count = new AtomicInteger();
+                    
+                    public Thread newThread(Runnable runnable)
+                    {
+                        Thread thread = new ShedThread(runnable, "request-shed-" + _count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        _maxQueued = maxQueued;
+        _shedCount = new AtomicLong(0);
+        _refusedCount = new AtomicLong(0);
+    }
+    
+    // the connector's work goes in the queue if there's room, otherwise to the shedding threads
+    private class BoundedPool extends QueuedThreadPool
+    {
+        BoundedPool(BlockingQueue<Runnable> queue)
+        {
+            super(queue);
+        }
+        
+        @Override
+        public boolean dispatch(Runnable job)
+        {
+            if (super.dispatch(job)) {
+                return true;
+            }
+            if (!isRunning()) {
+                return false;
+            }
+            try {
+                _shedder.execute(job);
+                return true;
+            }
+            catch (RejectedExecutionException exc) {
+                _refusedCount.incrementAndGet();
+                return false;
+            }
+        }
+        
+        @Override
+        protected void doStop() throws Exception
+        {
+            _shedder.shutdown();
+            super.doStop();
+        }
+    }
+    
+    private static class ShedThread extends Thread
+    {
+        ShedThread(Runnable runnable, String name)
+        {
+            super(runnable, name);
+        }
+    }
+    
+    // the pool to give to the server
+    public ThreadPool getThreadPool()
+    {
+        return _pool;
+    }
+    
+    // true if the current request came in while the queue was full, and should be turned away
+    public boolean isShedding()
+    {
+        return Thread.currentThread() instanceof ShedThread;
+    }
+    
+    public void recordShed()
+    {
+        _shedCount.incrementAndGet();
+    }
+    
+    public long getShedCount()
+    {
+        return _shedCount.get();
+    }
+    
+    // times the connector couldn't hand work over at all (the shedding threads were backed up too)
+    public long getRefusedCount()
+    {
+        return _refusedCount.get();
+    }
+    
+    public int getThreads()
+    {
+        return _pool.getThreads();
+    }
+    
+    public int getIdleThreads()
+    {
+        return _pool.getIdleThreads();
+    }
+    
+    // note that this includes the connector's acceptor (and selector) threads, which are always busy
+    public int getBusyThreads()
+    {
+        return _pool.getThreads() - _pool.getIdleThreads();
+    }
+    
+    public int getMinThreads()
+    {
+        return _pool.getMinThreads();
+    }
+    
+    public int getMaxThreads()
+    {
+        return _pool.getMaxThreads();
+    }
+    
+    public int getQueued()
+    {
+        return _queue.size();
+    }
+    
+    public int getMaxQueued()
+    {
+        return _maxQueued;
+    }
+    
+    // fraction of the maximum threads that are busy
+    public double getUtilization()
+    {
+        int max = _pool.getMaxThreads();
+        return (max > 0) ? (double)getBusyThreads() / max : 0.0;
+    }
+    
+    public void toJSON(JSONWriter jwriter)
+    {
+        jwriter.addItem("threads", getThreads());
+        jwriter.addItem("idleThreads", getIdleThreads());
+        jwriter.addItem("busyThreads", getBusyThreads());
+        jwriter.addItem("minThreads", getMinThreads());
+        jwriter.addItem("maxThreads", getMaxThreads());
+        jwriter.addItem("queued", getQueued());
+        jwriter.addItem("maxQueued", getMaxQueued());
+        jwriter.addItem("utilization", getUtilization());
+        jwriter.addItem("shed", getShedCount());
+        jwriter.addItem("refused", getRefusedCount());
+    }
+}
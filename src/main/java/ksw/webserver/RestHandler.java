@@ -50,6 +50,7 @@ public abstract class RestHandler extends AbstractHandler
     public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) 
             throws IOException, ServletException
     {
+        baseRequest.setHandled(true);
         // what kind of request do we have?
         String method = request.getMethod();
         String pathInfo = request.getPathInfo().substring(1);
@@ -217,21 +218,12 @@ public abstract class RestHandler extends AbstractHandler
     {
         Map<String, Object> result = null;
         
-        // turn the entire request into a String
+        // parse straight from the request body
         try {
             BufferedReader reader = request.getReader();
-            StringBuilder buffer = new StringBuilder();
-            while(true) {
-                String line = reader.readLine();
-                if (line == null) {
-                    break;
-                }
-                buffer.append(line);
-            }
-            reader.close();
-            
             JSONReader jReader = new JSONReader();
-            result = (Map<String, Object>)jReader.parse(buffer);
+            result = (Map<String, Object>)jReader.parse(reader);
+            reader.close();
             return result;
         } catch (IOException e) {
             return null;
@@ -0,0 +1,133 @@
+package ksw.webserver;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ksw.kwutil.JSONWriter;
+
+// keeps track of how long starting up takes, and runs the slow parts of it (Velocity, fetching reference data)
+// in the background, in parallel, once the server is already taking requests
+// times are ms since the JVM started, so the first one shows how long the JVM itself took to get to us
+// the server is ready when all the tasks have finished (whether they worked or not)
+public class Startup
+{
+    private static final int MaxThreads = 4;
+
+    private final long _jvmStart;
+    private final Map<String, Long> _phases = new LinkedHashMap<String, Long>();  // guarded by itself
+    private final List<String> _taskNames = new ArrayList<String>();
+    private final List<Runnable> _tasks = new ArrayList<Runnable>();
+    private final CountDownLatch _ready = new CountDownLatch(1);
+    private boolean _started;
+
+    public Startup()
+    {
+        _jvmStart = ManagementFactory.getRuntimeMXBean().getStartTime();
+    }
+
+    // note that a phase of starting up is done
+    public void mark(String phase)
+    {
+        long at = System.currentTimeMillis() - _jvmStart;
+        synchronized (_phases) {
+            _phases.put(phase, at);
+        }
+        System.out.println("Startup: " + phase + " at " + at + "ms");
+    }
+
+    // something to do in the background once the server's up - has to be added before start
+    public synchronized void addTask(String name, Runnable task)
+    {
+        if (_started) {
+            throw new IllegalStateException("startup tasks already started");
+        }
+        _taskNames.add(name);
+        _tasks.add(task);
+    }
+
+    // run the tasks, each marks a phase when it's done and the last one marks "ready"
+    public synchronized void start()
+    {
+        if (_started) {
+            return;
+        }
+        _started = true;
+        if (_tasks.isEmpty()) {
+            markReady();
+            return;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(MaxThreads, _tasks.size()), new ThreadFactory() {
+            private AtomicInteger _count = new AtomicInteger();
+
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "startup-" + _count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        final AtomicInteger remaining = new AtomicInteger(_tasks.size());
+        for (int i = 0; i < _tasks.size(); i++) {
+            final String name = _taskNames.get(i);
+            final Runnable task = _tasks.get(i);
+            executor.execute(new Runnable() {
+                public void run()
+                {
+                    try {
+                        task.run();
+                    }
+                    catch (RuntimeException exc) {
+                        System.out.println("Startup task " + name + " failed: " + exc);
+                    }
+                    finally {
+                        mark(name);
+                        if (remaining.decrementAndGet() == 0) {
+                            markReady();
+                        }
+                    }
+                }
+            });
+        }
+        // the threads go away once the tasks are done
+        executor.shutdown();
+    }
+
+    private void markReady()
+    {
+        mark("ready");
+        _ready.countDown();
+    }
+
+    public boolean isReady()
+    {
+        return _ready.getCount() == 0;
+    }
+
+    // wait until ready, for at most timeoutMs - returns whether it's ready
+    public boolean awaitReady(long timeoutMs) throws InterruptedException
+    {
+        return _ready.await(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    public void toJSON(JSONWriter jwriter)
+    {
+        jwriter.addItem("ready", isReady());
+        jwriter.addItem("uptime", System.currentTimeMillis() - _jvmStart);
+        jwriter.addObjectToObject("startup");
+        synchronized (_phases) {
+            for (Map.Entry<String, Long> phase : _phases.entrySet()) {
+                jwriter.addItem(phase.getKey(), phase.getValue());
+            }
+        }
+        jwriter.endObject();
+    }
+}
@@ -0,0 +1,295 @@
+package ksw.webserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.CRC32;
+import java.util.zip.DeflaterOutputStream;
+
+import ksw.servlet.ServletHelp;
+
+// holds the content of static files (angular.js, jquery...) in memory, so they can be served without going
+// to the filesystem for each request
+// the content is kept in direct (off-heap) buffers, which Jetty can write straight to the socket,
+// and text files also get gzip and deflate versions, made once when the file is loaded
+// the cache is bounded by the total size of the buffers, least recently used files go first
+// a file is checked for changes (by modification time) at most every revalidateMs
+public class StaticAssetCache
+{
+    public static final String Gzip = "gzip";
+    public static final String Deflate = "deflate";
+    
+    // a compressed version has to be at least this much smaller to be worth keeping
+    private static final double MaxCompressedRatio = 0.9;
+    
+    private final long _maxBytes;
+    private final long _maxFileSize;
+    private final long _revalidateMs;
+    
+    // in access order, so the first entry is the least recently used
+    // guarded by itself
+    private final LinkedHashMap<File, Asset> _assets;
+    private long _bytes;
+    
+    public StaticAssetCache(long maxBytes, long maxFileSize, long revalidateMs)
+    {
+        _maxBytes = maxBytes;
+        _maxFileSize = maxFileSize;
+        _revalidateMs = revalidateMs;
+        _assets = new LinkedHashMap<File, Asset>(64, 0.75f, true);
+        _bytes = 0;
+    }
+    
+    // the asset for the file, loading it if we need to
+    // returns null if the file doesn't exist (or isn't a plain file) or is too big to cache
+    // then it's up to the caller to serve it some other way
+    public Asset get(File file) throws IOException
+    {
+        Asset asset;
+        synchronized (_assets) {
+            asset = _assets.get(file);
+        }
+        long now = System.currentTimeMillis();
+        if (asset != null) {
+            if (now - asset._checkedAt < _revalidateMs) {
+                return asset;
+            }
+            if (file.lastModified() == asset._lastModified && file.length() == asset._length) {
+                asset._checkedAt = now;
+                return asset;
+            }
+            // changed (or gone)
+            remove(file, asset);
+        }
+        
+        if (!file.isFile() || file.length() > _maxFileSize) {
+            return null;
+        }
+        // load outside the lock - two requests for the same new file may both load it, which is harmless
+        asset = load(file, now);
+        add(file, asset);
+        return asset;
+    }
+    
+    public int size()
+    {
+        synchronized (_assets) {
+            return _assets.size();
+        }
+    }
+    
+    // total size of the buffers we hold
+    public long getBytes()
+    {
+        synchronized (_assets) {
+            return _bytes;
+        }
+    }
+    
+    private void add(File file, Asset asset)
+    {
+        synchronized (_assets) {
+            Asset old = _assets.put(file, asset);
+            if (old != null) {
+                _bytes -= old._weight;
+            }
+            _bytes += asset._weight;
+            // evict the least recently used until we fit (but always keep the one we just added)
+            Iterator<Map.Entry<File, Asset>> iter = _assets.entrySet().iterator();
+            while (_bytes > _maxBytes && iter.hasNext()) {
+                Map.Entry<File, Asset> entry = iter.next();
+                if (entry.getValue() == asset) {
+                    break;
+                }
+                _bytes -= entry.getValue()._weight;
+                iter.remove();
+            }
+        }
+    }
+    
+    private void remove(File file, Asset asset)
+    {
+        synchronized (_assets) {
+            if (_assets.get(file) == asset) {
+                _assets.remove(file);
+                _bytes -= asset._weight;
+            }
+        }
+    }
+    
+    private Asset load(File file, long now) throws IOException
+    {
+        // note the time before reading, so that a change while we read gets noticed next time
+        long lastModified = file.lastModified();
+        byte[] content = readFile(file);
+        String mimeType = ServletHelp.mimeFromFile(file);
+        
+        ByteBuffer gzip = null;
+        ByteBuffer deflate = null;
+        if (isCompressible(mimeType)) {
+            gzip = compressed(content, true);
+            deflate = compressed(content, false);
+        }
+        return new Asset(file, lastModified, content.length, mimeType, toDirect(content), gzip, deflate, now);
+    }
+    
+    private static byte[] readFile(File file) throws IOException
+    {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate((int)channel.size());
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    break;
+                }
+            }
+            if (buffer.hasRemaining()) {
+                // got shorter while we read it
+                byte[] result = new byte[buffer.position()];
+                System.arraycopy(buffer.array(), 0, result, 0, result.length);
+                return result;
+            }
+            return buffer.array();
+        }
+        finally {
+            in.close();
+        }
+    }
+    
+    // it's only worth compressing text
+    // (CompressionHandler uses this too, with content types that can have a charset on the end)
+    static boolean isCompressible(String mimeType)
+    {
+        if (mimeType != null && mimeType.indexOf(';') >= 0) {
+            mimeType = mimeType.substring(0, mimeType.indexOf(';')).trim();
+        }
+        return mimeType != null &&
+               (mimeType.startsWith("text/") || mimeType.equals("application/javascript") ||
+                mimeType.equals("application/json") || mimeType.equals("image/svg+xml"));
+    }
+    
+    // the gzip (or zlib, for "deflate") compressed content, or null if it doesn't save enough
+    private static ByteBuffer compressed(byte[] content, boolean gzip) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(content.length / 3);
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, gzip);
+        try {
+            if (gzip) {
+                GzipFormat.writeHeader(bytes);
+            }
+            DeflaterOutputStream zipOut = new DeflaterOutputStream(bytes, deflater, 8192);
+            zipOut.write(content);
+            zipOut.finish();
+            if (gzip) {
+                CRC32 crc = new CRC32();
+                crc.update(content, 0, content.length);
+                GzipFormat.writeTrailer(bytes, crc.getValue(), content.length);
+            }
+        }
+        finally {
+            deflater.end();
+        }
+        if (bytes.size() > content.length * MaxCompressedRatio) {
+            return null;
+        }
+        return toDirect(bytes.toByteArray());
+    }
+    
+    private static ByteBuffer toDirect(byte[] content)
+    {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(content.length);
+        buffer.put(content);
+        buffer.flip();
+        return buffer.asReadOnlyBuffer();
+    }
+    
+    public static class Asset
+    {
+        private final File _file;
+        private final long _lastModified;
+        private final long _length;
+        private final String _mimeType;
+        private final ByteBuffer _content;
+        private final ByteBuffer _gzip;  // null if we don't have it
+        private final ByteBuffer _deflate;
+        private final String[] _etags;  // for the plain, gzip and deflate versions
+        private final long _weight;
+        private volatile long _checkedAt;
+        
+        private Asset(File file, long lastModified, long length, String mimeType,
+                      ByteBuffer content, ByteBuffer gzip, ByteBuffer deflate, long checkedAt)
+        {
+            _file = file;
+            _lastModified = lastModified;
+            _length = length;
+            _mimeType = mimeType;
+            _content = content;
+            _gzip = gzip;
+            _deflate = deflate;
+            _etags = new String[] {
+                ServletHelp.makeETag(length, lastModified, null),
+                ServletHelp.makeETag(length, lastModified, Gzip),
+                ServletHelp.makeETag(length, lastModified, Deflate)
+            };
+            _weight = content.capacity() + ((gzip != null) ? gzip.capacity() : 0) + ((deflate != null) ? deflate.capacity() : 0);
+            _checkedAt = checkedAt;
+        }
+        
+        public File getFile()
+        {
+            return _file;
+        }
+        
+        public long getLastModified()
+        {
+            return _lastModified;
+        }
+        
+        public String getMimeType()
+        {
+            return _mimeType;
+        }
+        
+        // the content in the given coding (null for none), or null if we don't have that
+        // the buffers are shared and read-only - write them out with ServletHelp.writeBufferToResponse
+        public ByteBuffer getContent(String coding)
+        {
+            if (coding == null) {
+                return _content;
+            }
+            if (Gzip.equals(coding)) {
+                return _gzip;
+            }
+            if (Deflate.equals(coding)) {
+                return _deflate;
+            }
+            return null;
+        }
+        
+        // the entity tag for the content in the given coding (null for none)
+        public String getETag(String coding)
+        {
+            if (Gzip.equals(coding)) {
+                return _etags[1];
+            }
+            if (Deflate.equals(coding)) {
+                return _etags[2];
+            }
+            return _etags[0];
+        }
+        
+        // whether there are any compressed versions (so responses vary by Accept-Encoding)
+        public boolean isCompressed()
+        {
+            return _gzip != null || _deflate != null;
+        }
+    }
+}
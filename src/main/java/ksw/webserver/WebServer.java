@@ -13,11 +13,12 @@ import javax.servlet.http.HttpServletResponse;
 import org.apache.velocity.app.Velocity;
 import org.eclipse.jetty.server.Connector;
 import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.AbstractConnector;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.bio.SocketConnector;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
 import org.eclipse.jetty.server.handler.AbstractHandler;
 import org.eclipse.jetty.server.handler.ContextHandler;
-import org.eclipse.jetty.server.handler.HandlerList;
 import org.eclipse.jetty.server.handler.ResourceHandler;
 
 import ksw.kwutil.ArgsToMap;
@@ -33,6 +34,14 @@ public class WebServer
     private String _contextPath;
     private String _rootPath;
     private boolean _inited;
+    private RequestPool _requestPool;
+    private int _retryAfter;
+    private int _compressMin;  // negative for no compression
+    private int _compressLevel;
+    private DrainHandler _drainHandler;
+    private int _shutdownTimeout;
+    private List<Runnable> _shutdownTasks = new ArrayList<Runnable>();
+    private Startup _startup;
     
     private List<Handler> _handlerList;
 
@@ -42,6 +51,35 @@ public class WebServer
     // argument tokens
     public static final String FilesArg = "files";
     public static final String TemplatesArg = "templates";
+    // connector arguments - HerokuServer gets the same from the environment
+    public static final String ConnectorArg = "connector";  // NioConnector or BioConnector
+    public static final String AcceptorsArg = "acceptors";  // for nio, this is also the number of selectors
+    public static final String IdleTimeoutArg = "idleTimeout";  // milliseconds
+    public static final String AcceptQueueArg = "acceptQueue";  // backlog of connections waiting to be accepted
+    // request thread pool arguments (see RequestPool)
+    public static final String MinThreadsArg = "minThreads";
+    public static final String MaxThreadsArg = "maxThreads";
+    public static final String MaxQueuedArg = "maxQueued";  // requests waiting for a thread before we answer 503
+    public static final String RetryAfterArg = "retryAfter";  // seconds, sent with the 503
+    public static final String StatusArg = "status";  // path for the pool status (JSON), none if not given
+    // response compression for the app servlet and REST handlers (see CompressionHandler)
+    public static final String CompressMinArg = "compressMin";  // bytes, -1 to turn compression off
+    public static final String CompressLevelArg = "compressLevel";  // 1 (fast) to 9 (small)
+    public static final String ShutdownTimeoutArg = "shutdownTimeout";  // ms to let requests finish when stopping
+    // startup (see Startup)
+    public static final String HealthArg = "health";  // path for the health check, none if not given
+    
+    public static final String NioConnector = "nio";
+    public static final String BioConnector = "bio";
+    
+    // close idle (keep-alive) connections after this long, unless told otherwise
+    public static final int DefaultIdleTimeout = 30000;
+    public static final int DefaultMinThreads = 8;
+    public static final int DefaultMaxThreads = 200;
+    public static final int DefaultMaxQueued = 200;
+    public static final int DefaultRetryAfter = 2;
+    // heroku kills the process 30 seconds after asking it to stop, so be done before that
+    public static final int DefaultShutdownTimeout = 25000;
 
 
     
@@ -60,7 +98,24 @@ public class WebServer
                 // path to templates (root of a classpath)
                 TemplatesArg, ArgsToMap.StringArg,
                 // list of additional file servlets - the servlet name and the path
-                FilesArg, ArgsToMap.DoubleListArg);
+                FilesArg, ArgsToMap.DoubleListArg,
+                // connector setup
+                ConnectorArg, ArgsToMap.StringArg,
+                AcceptorsArg, ArgsToMap.IntegerArg,
+                IdleTimeoutArg, ArgsToMap.IntegerArg,
+                AcceptQueueArg, ArgsToMap.IntegerArg,
+                // request threads
+                MinThreadsArg, ArgsToMap.IntegerArg,
+                MaxThreadsArg, ArgsToMap.IntegerArg,
+                MaxQueuedArg, ArgsToMap.IntegerArg,
+                RetryAfterArg, ArgsToMap.IntegerArg,
+                StatusArg, ArgsToMap.StringArg,
+                // response compression
+                CompressMinArg, ArgsToMap.IntegerArg,
+                CompressLevelArg, ArgsToMap.IntegerArg,
+                // starting and stopping
+                HealthArg, ArgsToMap.StringArg,
+                ShutdownTimeoutArg, ArgsToMap.IntegerArg);
         Map<String,Object> processedArgs = argProcessor.processArgs(args);
         if (processedArgs == null) {
             System.out.println("Program arguments invalid");
@@ -87,6 +142,7 @@ public class WebServer
     {
         _inited = false;
         _handlerList = new ArrayList<Handler>(40);
+        _startup = new Startup();
     }
 
     public void initialize(Map<String, Object> arguments, int portNumber, String appServletName, AppServlet appS)
@@ -94,9 +150,10 @@ public class WebServer
         String templatesArg = (arguments != null) ? (String)arguments.get(TemplatesArg) : null;
         if (templatesArg != null) {
             initializeVelocity(templatesArg);
+            addStartupTask("velocity", createVelocityTask());
         }
 
-        lowInit(portNumber, "");
+        lowInit(portNumber, "", arguments);
         // add test servlets
         //_sserver.addTestServlets();
 
@@ -110,8 +167,17 @@ public class WebServer
             }
         }
 
+        String statusPath = (arguments != null) ? (String)arguments.get(StatusArg) : null;
+        if (statusPath != null) {
+            addStatusHandler(statusPath);
+        }
+        String healthPath = (arguments != null) ? (String)arguments.get(HealthArg) : null;
+        if (healthPath != null) {
+            addHealthHandler(healthPath);
+        }
+
         if (appServletName != null && appS != null) {
-            addContextHandler(appS, "/"+appServletName);
+            addContextHandler(compressed(appS), "/"+appServletName);
             //addAppServletHandler(appS, "/"+appServletName);
         }
     }
@@ -122,6 +188,17 @@ public class WebServer
      * @param contextPath context path of the servlet, usually "" or "/blah"
      */
     protected void lowInit (int portNumber, String contextPath)
+    {
+        lowInit(portNumber, contextPath, null);
+    }
+    
+    /**
+     * Initialize the server.
+     * @param portNumber the port number to listen for http requests
+     * @param contextPath context path of the servlet, usually "" or "/blah"
+     * @param options the connector and thread arguments (ConnectorArg, MaxThreadsArg etc), may be null
+     */
+    protected void lowInit (int portNumber, String contextPath, Map<String, Object> options)
     {
         if (_inited) {
             // we only allow initialization once
@@ -141,15 +218,87 @@ public class WebServer
         }
         _contextPath = contextPath;
 
-        // set up the connector
-        Connector connector = new SocketConnector();
-        connector.setPort(portNumber);
+        // the threads for requests, then the connector (which takes some of the threads)
+        _requestPool = createRequestPool(options);
+        _server.setThreadPool(_requestPool.getThreadPool());
+        Connector connector = createConnector(portNumber, options);
         _server.setConnectors(new Connector[]{connector});
+        _compressMin = getIntOption(options, CompressMinArg, CompressionHandler.DefaultMinSize);
+        _compressLevel = getIntOption(options, CompressLevelArg, CompressionHandler.DefaultLevel);
+        _shutdownTimeout = getIntOption(options, ShutdownTimeoutArg, DefaultShutdownTimeout);
 
         // set up the internal context, used for internal servlets
         //_internalContext = new ServletContextHandler(_server, _contextPath, ServletContextHandler.SESSIONS);
 
         _inited = true;
+        _startup.mark("initialized");
+    }
+
+    // the non-blocking connector, unless asked for the blocking one
+    // the blocking connector ties up a thread for every open connection, even when it's idle between requests
+    // with nio, idle connections just wait in a selector and only take a thread while there's a request
+    protected Connector createConnector(int portNumber, Map<String, Object> options)
+    {
+        String type = (String)getOption(options, ConnectorArg);
+        AbstractConnector connector;
+        if (BioConnector.equals(type)) {
+            connector = new SocketConnector();
+        }
+        else {
+            if (type != null && !NioConnector.equals(type)) {
+                System.out.println("Unknown connector " + type + ", using " + NioConnector);
+            }
+            connector = new SelectChannelConnector();
+        }
+        connector.setPort(portNumber);
+        
+        Integer acceptors = (Integer)getOption(options, AcceptorsArg);
+        if (acceptors != null) {
+            connector.setAcceptors(acceptors);
+        }
+        Integer idleTimeout = (Integer)getOption(options, IdleTimeoutArg);
+        connector.setMaxIdleTime((idleTimeout != null) ? idleTimeout : DefaultIdleTimeout);
+        Integer acceptQueue = (Integer)getOption(options, AcceptQueueArg);
+        if (acceptQueue != null) {
+            connector.setAcceptQueueSize(acceptQueue);
+        }
+        
+        System.out.println("Using " + ((connector instanceof SocketConnector) ? BioConnector : NioConnector) + " connector, " +
+                           connector.getAcceptors() + " acceptors, idle timeout " + connector.getMaxIdleTime() + "ms");
+        return connector;
+    }
+    
+    private static Object getOption(Map<String, Object> options, String name)
+    {
+        return (options != null) ? options.get(name) : null;
+    }
+    
+    private static int getIntOption(Map<String, Object> options, String name, int defaultValue)
+    {
+        Integer value = (Integer)getOption(options, name);
+        return (value != null) ? value : defaultValue;
+    }
+    
+    protected RequestPool createRequestPool(Map<String, Object> options)
+    {
+        int minThreads = getIntOption(options, MinThreadsArg, DefaultMinThreads);
+        int maxThreads = getIntOption(options, MaxThreadsArg, DefaultMaxThreads);
+        int maxQueued = getIntOption(options, MaxQueuedArg, DefaultMaxQueued);
+        _retryAfter = getIntOption(options, RetryAfterArg, DefaultRetryAfter);
+        System.out.println("Request threads " + minThreads + " to " + maxThreads + ", at most " + maxQueued + " requests waiting");
+        return new RequestPool(minThreads, Math.max(minThreads, maxThreads), maxQueued);
+    }
+    
+    // seconds to send with a 503 - set by lowInit
+    public int getRetryAfter()
+    {
+        return _retryAfter;
+    }
+    
+    // the request threads - null until lowInit
+    public RequestPool getRequestPool()
+    {
+        return _requestPool;
     }
 
     // heuristic approach to figuring out whether we are running a local instance
@@ -176,6 +325,34 @@ public class WebServer
             System.out.println("Exception initializing velocity: " + exc);
         }
     }
+    
+    // starts the Velocity engine, which otherwise happens (slowly) on the first page request
+    protected Runnable createVelocityTask()
+    {
+        return new Runnable() {
+            public void run()
+            {
+                try {
+                    Velocity.init();
+                }
+                catch (Exception exc) {
+                    System.out.println("Exception initializing velocity: " + exc);
+                }
+            }
+        };
+    }
+    
+    public Startup getStartup()
+    {
+        return _startup;
+    }
+    
+    // something slow to do in the background after the server starts listening (see Startup)
+    // requests don't wait for these - they're served with whatever's ready, and /health says when it all is
+    public void addStartupTask(String name, Runnable task)
+    {
+        _startup.addTask(name, task);
+    }
 
     /**
      * Add a servlet to the server.
@@ -212,25 +389,58 @@ public class WebServer
         _handlerList.add(ch);
     }
     
+    // answers at the path as soon as we're listening, with the startup phases
+    // and whether the startup tasks are done
+    public void addHealthHandler(String context)
+    {
+        ContextHandler ch = new ContextHandler();
+        ch.setContextPath(context);
+        ch.setAllowNullPathInfo(true);
+        ch.setHandler(new HealthHandler(_startup));
+        
+        _handlerList.add(ch);
+    }
+    
+    // report on the request threads (as JSON) at the path
+    // must be called after lowInit
+    public void addStatusHandler(String context)
+    {
+        ContextHandler ch = new ContextHandler();
+        ch.setContextPath(context);
+        // answer at the path itself, rather than redirecting to path/
+        ch.setAllowNullPathInfo(true);
+        ch.setHandler(new PoolStatusHandler(_requestPool));
+        
+        _handlerList.add(ch);
+    }
+    
     // rest handler
     public void addRestHandler(RestHandler rh, String context)
     {
         ContextHandler restContext = new ContextHandler();
         restContext.setContextPath(context);
-        restContext.setHandler(rh);
+        restContext.setHandler(compressed(rh));
         
         _handlerList.add(restContext);
     }
 
     // equivalent to addResourceHandler, but use our FileReadHandler instead of Jetty's ResourceHandler
-    public void addFileHandler(String path, String prefix)
+    public FileReadHandler addFileHandler(String path, String prefix)
+    {
+        return addFileHandler(path, prefix, null, false);
+    }
+    
+    // file handler that serves from the cache (which may be shared between handlers, or null)
+    // with fallThrough, requests for files that aren't there are left for the handlers after this one
+    public FileReadHandler addFileHandler(String path, String prefix, StaticAssetCache cache, boolean fallThrough)
     {
-        FileReadHandler fileHandler = new FileReadHandler(new File(path));
+        FileReadHandler fileHandler = new FileReadHandler(new File(path), cache, fallThrough);
         ContextHandler ch = new ContextHandler();
         ch.setHandler(fileHandler);
         ch.setContextPath("/" + prefix);
 
         _handlerList.add(ch);
+        return fileHandler;
     }
     
     // add one of my AppServlets
@@ -243,6 +453,16 @@ public class WebServer
     }
     */
 
+    // the handler, wrapped so its responses get compressed (unless compression is turned off)
+    // then it can go to addContextHandler
+    public AbstractHandler compressed(AbstractHandler handler)
+    {
+        if (_compressMin < 0) {
+            return handler;
+        }
+        return new CompressionHandler(handler, _compressMin, _compressLevel);
+    }
+
     // lower-level abstract handler
     public void addContextHandler(AbstractHandler ah, String context)
     {
@@ -303,12 +523,31 @@ public class WebServer
             _handlerList.toArray(handlers);
             _handlerList = null;  // indicates that we've started the server
 
-            HandlerList hlist = new HandlerList();
-            hlist.setHandlers(handlers);
-            _server.setHandler(hlist);
+            // each request goes straight to the handlers for its context
+            PrefixRouter router = new PrefixRouter();
+            router.setHandlers(handlers);
+            // turn requests away while we're overloaded
+            LoadShedHandler shedder = new LoadShedHandler(_requestPool, _retryAfter);
+            shedder.setHandler(router);
+            // and keep track of them, so we can let them finish when we're stopped
+            _drainHandler = new DrainHandler(_retryAfter);
+            _drainHandler.setHandler(shedder);
+            _server.setHandler(_drainHandler);
             
+            // SIGTERM (a heroku restart or deploy) runs the shutdown hooks
+            Runtime.getRuntime().addShutdownHook(new Thread("graceful-stop") {
+                @Override
+                public void run()
+                {
+                    gracefulStop();
+                }
+            });
             
+            _startup.mark("handlers");
             _server.start();
+            // we're listening, now do the slow stuff
+            _startup.mark("listening");
+            _startup.start();
             _server.join();
         }
         catch (Exception exc)
@@ -320,6 +559,67 @@ public class WebServer
 
     }
     
+    // something to do once the requests have drained, before the server stops (flush a cache, log stats...)
+    public void addShutdownTask(Runnable task)
+    {
+        synchronized (_shutdownTasks) {
+            _shutdownTasks.add(task);
+        }
+    }
+    
+    // stop taking connections, give the requests in progress until the shutdown timeout to finish,
+    // run the shutdown tasks, then stop the server (which lets run() return)
+    public void gracefulStop()
+    {
+        Server server = _server;
+        if (server == null || _drainHandler == null || _drainHandler.isDraining()) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        System.out.println("Stopping: " + _drainHandler.getInFlight() + " requests in progress");
+        _drainHandler.startDraining();
+        for (Connector connector : server.getConnectors()) {
+            try {
+                connector.close();
+            }
+            catch (IOException exc) {
+                System.out.println("Exception closing connector: " + exc);
+            }
+        }
+        
+        try {
+            int left = _drainHandler.awaitDrained(start + _shutdownTimeout);
+            if (left > 0) {
+                System.out.println("Stopping anyway, " + left + " requests didn't finish in " + _shutdownTimeout + "ms");
+            }
+        }
+        catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+        }
+        
+        List<Runnable> tasks;
+        synchronized (_shutdownTasks) {
+            tasks = new ArrayList<Runnable>(_shutdownTasks);
+        }
+        for (Runnable task : tasks) {
+            try {
+                task.run();
+            }
+            catch (RuntimeException exc) {
+                System.out.println("Exception in shutdown task: " + exc);
+            }
+        }
+        System.out.println("Requests shed (503) while running: " + _requestPool.getShedCount());
+        
+        try {
+            server.stop();
+        }
+        catch (Exception exc) {
+            System.out.println("Exception stopping server: " + exc);
+        }
+        System.out.println("Stopped in " + (System.currentTimeMillis() - start) + "ms");
+    }
+    
     private static String getLocalAddress ()
     {
         String result;
@@ -0,0 +1,143 @@
+package ksw.webserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.ContextHandler;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ksw.servlet.AppRequest;
+import ksw.servlet.AppServlet;
+import ksw.servlet.AsyncResult;
+
+// an action that suspends its request (returns an AsyncResult that completes later, on another thread)
+// should come out compressed when it's resumed, and say it varies by Accept-Encoding just once
+public class CompressionHandlerTest
+{
+    // big and repetitive, so well over the minimum size
+    private static final String Message = makeMessage();
+
+    private Server _server;
+    private int _port;
+
+    public static class Actions
+    {
+        public static AsyncResult<String> slowAction(AppRequest request)
+        {
+            final AsyncResult<String> result = new AsyncResult<String>() {
+                protected void write(AppRequest request, String value)
+                {
+                    request.writeSuccessJSON(value);
+                }
+            };
+            new Thread("slow-action") {
+                public void run()
+                {
+                    try {
+                        Thread.sleep(100);
+                    }
+                    catch (InterruptedException exc) {
+                    }
+                    result.complete(Message);
+                }
+            }.start();
+            return result;
+        }
+    }
+
+    @Before
+    public void startServer() throws Exception
+    {
+        AppServlet appServlet = new AppServlet(new AppServlet.Application());
+        appServlet.registerActions(Actions.class);
+        ContextHandler context = new ContextHandler();
+        context.setContextPath("/app");
+        context.setHandler(new CompressionHandler(appServlet));
+
+        _server = new Server();
+        SelectChannelConnector connector = new SelectChannelConnector();
+        connector.setPort(0);
+        _server.addConnector(connector);
+        _server.setHandler(context);
+        _server.start();
+        _port = connector.getLocalPort();
+    }
+
+    @After
+    public void stopServer() throws Exception
+    {
+        _server.stop();
+    }
+
+    @Test
+    public void resumedResponseIsCompressed() throws IOException
+    {
+        HttpURLConnection conn = get("gzip");
+        assertEquals(200, conn.getResponseCode());
+        assertEquals("gzip", conn.getHeaderField("Content-Encoding"));
+        assertVariesOnce(conn);
+        String body = read(new GZIPInputStream(conn.getInputStream()));
+        assertTrue(body.startsWith("{\"action\": \"success\""));
+        assertTrue(body.contains(Message));
+    }
+
+    @Test
+    public void resumedResponseIsPlainWithoutAcceptEncoding() throws IOException
+    {
+        HttpURLConnection conn = get(null);
+        assertEquals(200, conn.getResponseCode());
+        assertNull(conn.getHeaderField("Content-Encoding"));
+        assertVariesOnce(conn);
+        assertTrue(read(conn.getInputStream()).contains(Message));
+    }
+
+    private HttpURLConnection get(String acceptEncoding) throws IOException
+    {
+        HttpURLConnection conn = (HttpURLConnection)new URL("http://localhost:" + _port + "/app/slow").openConnection();
+        if (acceptEncoding != null) {
+            conn.setRequestProperty("Accept-Encoding", acceptEncoding);
+        }
+        return conn;
+    }
+
+    private static void assertVariesOnce(HttpURLConnection conn)
+    {
+        List<String> vary = conn.getHeaderFields().get("Vary");
+        assertEquals(1, (vary != null) ? vary.size() : 0);
+        assertEquals("Accept-Encoding", vary.get(0));
+    }
+
+    private static String read(InputStream in) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int count;
+        while ((count = in.read(buffer)) > 0) {
+            out.write(buffer, 0, count);
+        }
+        in.close();
+        return out.toString("UTF-8");
+    }
+
+    private static String makeMessage()
+    {
+        StringBuilder sb = new StringBuilder();
+        for (int ii=0; ii<200; ii++) {
+            sb.append("product ").append(ii).append(" in stock; ");
+        }
+        return sb.toString();
+    }
+}